@@ -4,20 +4,38 @@ import android.content.Context
 import androidx.room.Database
 import androidx.room.Room
 import androidx.room.RoomDatabase
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
 import com.antony.muzei.pixiv.settings.deleteArtwork.DeletedArtworkIdDao
 import com.antony.muzei.pixiv.settings.deleteArtwork.DeletedArtworkIdEntity
 
-@Database(entities = [DeletedArtworkIdEntity::class], version = 1)
+@Database(entities = [DeletedArtworkIdEntity::class], version = 2)
 abstract class AppDatabase : RoomDatabase() {
     companion object {
         private const val NAME = "DeletedArtworkIdDatabase"
         private var appDatabase: AppDatabase? = null
 
+        // Version 2 stores artworkId as an INTEGER instead of TEXT, as every lookup is made with an Int
+        // SQLite cannot change the type of a column, so the table is copied over into a new one
+        // Any id that is somehow not a number is dropped
+        private val MIGRATION_1_2 = object : Migration(1, 2) {
+            override fun migrate(database: SupportSQLiteDatabase) {
+                database.execSQL("CREATE TABLE IF NOT EXISTS `DeletedArtworkIdEntity_new` (`artworkId` INTEGER NOT NULL, PRIMARY KEY(`artworkId`))")
+                database.execSQL("INSERT OR IGNORE INTO `DeletedArtworkIdEntity_new` (`artworkId`) " +
+                        "SELECT CAST(`artworkId` AS INTEGER) FROM `DeletedArtworkIdEntity` " +
+                        "WHERE `artworkId` != '' AND `artworkId` NOT GLOB '*[^0-9]*'")
+                database.execSQL("DROP TABLE `DeletedArtworkIdEntity`")
+                database.execSQL("ALTER TABLE `DeletedArtworkIdEntity_new` RENAME TO `DeletedArtworkIdEntity`")
+            }
+        }
+
         // singleton creational design pattern
         fun getInstance(context: Context): AppDatabase? {
             if (appDatabase == null) {
                 synchronized(this) {
-                    appDatabase = Room.databaseBuilder(context.applicationContext, AppDatabase::class.java, NAME).fallbackToDestructiveMigration().build()
+                    appDatabase = Room.databaseBuilder(context.applicationContext, AppDatabase::class.java, NAME)
+                            .addMigrations(MIGRATION_1_2)
+                            .build()
                 }
             }
             return appDatabase
@@ -22,10 +22,10 @@ import android.util.Log
 import androidx.preference.PreferenceManager
 import com.antony.muzei.pixiv.PixivProviderConst.*
 import com.antony.muzei.pixiv.annotation.IOThread
-import com.antony.muzei.pixiv.login.OAuthResponseService
 import com.antony.muzei.pixiv.login.OauthResponse
 import com.antony.muzei.pixiv.provider.PixivArtProviderDefines
 import com.antony.muzei.pixiv.provider.exceptions.AccessTokenAcquisitionException
+import com.antony.muzei.pixiv.provider.network.NetworkPath
 import com.antony.muzei.pixiv.provider.network.RestClient
 import java.io.IOException
 
@@ -74,7 +74,11 @@ class PixivInstrumentation {
             )
 
             // Building and executing the network call
-            val service = RestClient.getRetrofitOauthInstance(false).create(OAuthResponseService::class.java)
+            val service = RestClient.getOauthService(
+                    PixivMuzeiSupervisor.getContext()
+                            ?.let { NetworkPath.fromPreferences(PreferenceManager.getDefaultSharedPreferences(it)) }
+                            ?: NetworkPath.AUTO
+            )
             try {
                 val response = service.postRefreshToken(formBody).execute()
                 if (!response.isSuccessful) {
@@ -119,12 +123,12 @@ class PixivInstrumentation {
         return doFetchPixivToken(
                 context,
                 prefs.getString(PREFERENCE_PIXIV_REFRESH_TOKEN, ""),
-                prefs.getBoolean("pref_enableNetworkBypass", false)
+                NetworkPath.fromPreferences(prefs)
         ) ?: ""
     }
 
     @Throws(AccessTokenAcquisitionException::class)
-    private fun doFetchPixivToken(context: Context, refreshToken: String?, bypassActive: Boolean = false) =
+    private fun doFetchPixivToken(context: Context, refreshToken: String?, networkPath: NetworkPath = NetworkPath.AUTO) =
             mutableMapOf(
                     "get_secure_url" to 1.toString(),
                     "client_id" to BuildConfig.PIXIV_CLIENT_ID,
@@ -135,8 +139,7 @@ class PixivInstrumentation {
                         ?.takeIf { it.isNotEmpty() }
                         ?.also { put("refresh_token", it) }
             }.let { params ->
-                val service =
-                        RestClient.getRetrofitOauthInstance(bypassActive).create(OAuthResponseService::class.java)
+                val service = RestClient.getOauthService(networkPath)
                 try {
                     val call = service.postRefreshToken(params)
                     val response = call.execute()
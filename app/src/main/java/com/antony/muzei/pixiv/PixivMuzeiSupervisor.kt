@@ -26,6 +26,7 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager
 import com.antony.muzei.pixiv.annotation.IOThread
 import com.antony.muzei.pixiv.provider.exceptions.AccessTokenAcquisitionException
 import com.antony.muzei.pixiv.util.Predicates
+import java.io.File
 
 /**
  * Created by alvince on 2020/6/16
@@ -61,6 +62,17 @@ object PixivMuzeiSupervisor {
         return appInstrumentation.getAccessToken(appContext)
     }
 
+    /**
+     * Returns the application context, or null if not yet started
+     */
+    fun getContext(): Context? = if (start) appContext else null
+
+    /**
+     * Returns a directory under the app's cache directory, or null if not yet started
+     */
+    fun getCacheDir(name: String): File? =
+            if (start) File(appContext.cacheDir, name) else null
+
     fun broadcastLocal(intent: Intent) {
         require(intent.action?.isNotEmpty() == true)
 
@@ -65,13 +65,14 @@ class LoginActivityWebview : PixivMuzeiActivity(), CoroutineScope by CoroutineSc
                 if (url.scheme.equals("pixiv")) {
                     launch(Dispatchers.IO) {
                         val oauthResponse = PixivInstrumentation.login(verifierCode, url.getQueryParameter("code")!!)
-                        if (!oauthResponse.isHas_error) {
+                        val pixivOauthResponse = oauthResponse.pixivOauthResponse
+                        if (!oauthResponse.has_error && pixivOauthResponse != null) {
                             withContext(Dispatchers.Main) {
-                                PixivInstrumentation.updateTokenLocal(applicationContext, oauthResponse.pixivOauthResponse)
+                                PixivInstrumentation.updateTokenLocal(applicationContext, pixivOauthResponse)
                                 webView.destroy()
                                 // Returns the username for immediate consumption by MainPreferenceFragment
                                 // Sets the "Logged in as XXX" preference summary
-                                val username: Intent = Intent().putExtra("username", oauthResponse.pixivOauthResponse.user.name)
+                                val username: Intent = Intent().putExtra("username", pixivOauthResponse.user?.name)
                                 setResult(RESULT_OK, username)
                                 finish()
                             }
@@ -0,0 +1,56 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.login
+
+import com.squareup.moshi.Json
+import com.squareup.moshi.JsonClass
+
+@JsonClass(generateAdapter = true)
+class OauthResponse(
+        @Json(name = "response")
+        val pixivOauthResponse: PixivOauthResponse? = null,
+        val has_error: Boolean = false
+) {
+    @JsonClass(generateAdapter = true)
+    class PixivOauthResponse(
+            val access_token: String,
+            val expires_in: Int = 0,
+            val token_type: String? = null,
+            val scope: String? = null,
+            val refresh_token: String? = null,
+            val user: PixivOauthUser? = null
+    ) {
+        @JsonClass(generateAdapter = true)
+        class PixivOauthUser(
+                val profile_image_urls: Profile_Image_Urls? = null,
+                val id: String? = null,
+                val name: String? = null,
+                val mail_address: String? = null,
+                val is_premius: Boolean = false,
+                val x_restrict: Int = 0,
+                val is_mail_authorized: Boolean = false
+        ) {
+            @JsonClass(generateAdapter = true)
+            class Profile_Image_Urls(
+                    val px_16x16: String? = null,
+                    val px_50x50: String? = null,
+                    val px_170x170: String? = null
+            )
+        }
+    }
+}
@@ -23,8 +23,10 @@ import android.content.Intent
 import android.os.Build
 import android.os.IBinder
 import androidx.core.app.NotificationCompat
+import androidx.preference.PreferenceManager
 import com.antony.muzei.pixiv.R
-import com.antony.muzei.pixiv.provider.network.OkHttpSingleton
+import com.antony.muzei.pixiv.provider.network.NetworkPath
+import com.antony.muzei.pixiv.provider.network.RestClient
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.SupervisorJob
@@ -58,15 +60,15 @@ class AddToBookmarkService : Service(), CoroutineScope by CoroutineScope(Dispatc
                 .addHeader("Content-Type", "application/x-www-form-urlencoded")
                 .addHeader("User-Agent", PixivArtProviderDefines.APP_USER_AGENT)
                 .addHeader("Authorization", "Bearer " + intent.getStringExtra("accessToken"))
-                .addHeader("Connection", "close")
                 .post(authData)
                 .url(rankingUrl)
                 .build()
 
-        val call = OkHttpSingleton.getInstance().newCall(request)
+        val networkPath = NetworkPath.fromPreferences(PreferenceManager.getDefaultSharedPreferences(this))
         // NetworkOnMainThread exception
+        // The call is created off the main thread too, as the automatic path may race its connections first
         launch(Dispatchers.IO) {
-            call.execute()
+            RestClient.getBookmarkCallFactory(networkPath).newCall(request).execute()
         }
         stopSelf()
         return START_REDELIVER_INTENT
@@ -21,6 +21,7 @@ import android.os.Environment
 import androidx.work.Worker
 import androidx.work.WorkerParameters
 import com.antony.muzei.pixiv.provider.PixivArtWorker.Companion.enqueueLoad
+import com.antony.muzei.pixiv.provider.download.ImageStore
 import java.io.File
 
 class ClearCacheWorker(
@@ -31,6 +32,8 @@ class ClearCacheWorker(
         for (child in dir!!.list()) {
             File(dir, child).delete()
         }
+        ImageStore(applicationContext).clear()
+        PrefetchBuffer(applicationContext).clear()
         enqueueLoad(true, applicationContext)
         return Result.success()
     }
@@ -4,8 +4,8 @@ import android.content.BroadcastReceiver
 import android.content.Context
 import android.content.Intent
 import android.os.AsyncTask
-import com.antony.muzei.pixiv.AppDatabase
 import com.antony.muzei.pixiv.settings.deleteArtwork.DeletedArtworkIdEntity
+import com.antony.muzei.pixiv.settings.deleteArtwork.DeletedArtworkIdSet
 import com.google.android.apps.muzei.api.provider.ProviderContract
 
 class DeleteArtworkReceiver : BroadcastReceiver() {
@@ -24,9 +24,8 @@ class DeleteArtworkReceiver : BroadcastReceiver() {
                     selectionArgs
             )
 
-            val appDatabase = AppDatabase.getInstance(context)
             AsyncTask.execute {
-                appDatabase?.deletedArtworkIdDao()?.insertDeletedArtworkId(listOf(DeletedArtworkIdEntity(artworkId)))
+                DeletedArtworkIdSet.insert(context, listOf(DeletedArtworkIdEntity(artworkId.toInt())))
             }
         }
     }
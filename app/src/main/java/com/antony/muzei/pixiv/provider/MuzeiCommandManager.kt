@@ -22,7 +22,6 @@ import android.content.Context
 import android.content.Intent
 import android.net.Uri
 import android.os.Build
-import android.os.Environment
 import androidx.core.app.RemoteActionCompat
 import androidx.core.content.FileProvider
 import androidx.core.graphics.drawable.IconCompat
@@ -93,7 +92,7 @@ class MuzeiCommandManager {
     private fun obtainActionShareImage(context: Context, artwork: Artwork): RemoteActionCompat? =
             Intent(Intent.ACTION_SEND).apply {
                 type = "image/*"
-                File(context.getExternalFilesDir(Environment.DIRECTORY_PICTURES), "${artwork.token}.png").let { f ->
+                File(artwork.persistentUri!!.path!!).let { f ->
                     FileProvider.getUriForFile(context, "${BuildConfig.APPLICATION_ID}.fileprovider", f)
                 }.also { uri ->
                     putExtra(Intent.EXTRA_STREAM, uri)
@@ -0,0 +1,61 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.provider
+
+import com.antony.muzei.pixiv.provider.download.ImageStore
+import org.json.JSONObject
+
+/**
+ * An artwork that has passed filtering, but has not yet been downloaded
+ * Selection and downloading are kept apart so that the whole batch can be downloaded at once
+ *
+ * [imageUrl] for ranking artworks is missing its file extension, which is found during download
+ */
+internal class PendingArtwork(
+        val token: String,
+        val title: String,
+        val byline: String,
+        val attribution: String?,
+        val imageUrl: String,
+        val needsExtensionProbe: Boolean
+) {
+
+    // Identifies the image in the image store, regardless of which update mode selected it
+    val storeKey: String
+        get() = ImageStore.keyOf(imageUrl)
+
+    companion object {
+        fun fromJson(json: JSONObject): PendingArtwork = PendingArtwork(
+                token = json.getString("token"),
+                title = json.getString("title"),
+                byline = json.getString("byline"),
+                attribution = if (json.isNull("attribution")) null else json.getString("attribution"),
+                imageUrl = json.getString("imageUrl"),
+                needsExtensionProbe = json.getBoolean("needsExtensionProbe")
+        )
+    }
+
+    fun toJson(): JSONObject = JSONObject().apply {
+        put("token", token)
+        put("title", title)
+        put("byline", byline)
+        put("attribution", attribution ?: JSONObject.NULL)
+        put("imageUrl", imageUrl)
+        put("needsExtensionProbe", needsExtensionProbe)
+    }
+}
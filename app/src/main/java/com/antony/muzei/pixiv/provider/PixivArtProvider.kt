@@ -19,14 +19,12 @@
 
 package com.antony.muzei.pixiv.provider
 
-import android.annotation.SuppressLint
 import android.content.Context
 import android.content.Intent
 import android.net.ConnectivityManager
 import android.net.NetworkCapabilities
 import android.net.Uri
 import android.os.Build
-import android.os.Environment
 import android.util.Log
 import android.widget.Toast
 import androidx.core.app.RemoteActionCompat
@@ -39,9 +37,8 @@ import com.antony.muzei.pixiv.PixivMuzeiSupervisor.start
 import com.antony.muzei.pixiv.PixivProviderConst
 import com.antony.muzei.pixiv.R
 import com.antony.muzei.pixiv.provider.exceptions.AccessTokenAcquisitionException
-import com.antony.muzei.pixiv.provider.network.RubyHttpDns
-import com.antony.muzei.pixiv.provider.network.RubySSLSocketFactory
-import com.antony.muzei.pixiv.provider.network.interceptor.NetworkTrafficLogInterceptor
+import com.antony.muzei.pixiv.provider.network.NetworkPath
+import com.antony.muzei.pixiv.provider.network.RestClient
 import com.antony.muzei.pixiv.util.IntentUtils
 import com.google.android.apps.muzei.api.UserCommand
 import com.google.android.apps.muzei.api.provider.Artwork
@@ -51,10 +48,7 @@ import java.io.File
 import java.io.FileNotFoundException
 import java.io.IOException
 import java.io.InputStream
-import java.security.cert.X509Certificate
 import java.util.*
-import javax.net.ssl.SSLSession
-import javax.net.ssl.X509TrustManager
 
 class PixivArtProvider : MuzeiArtProvider() {
 
@@ -75,13 +69,24 @@ class PixivArtProvider : MuzeiArtProvider() {
         return true
     }
 
+    /*
+        If the prefetch buffer has an artwork ready, it is handed over to Muzei immediately, and the worker
+        only has to top the buffer back up. Otherwise Muzei waits on the worker as usual
+        A buffered artwork is already on disk, so it is handed over even in data saver mode
+     */
     override fun onLoadRequested(initial: Boolean) {
+        val context = checkContext()
+        val bufferedArtwork = PrefetchBuffer(context).take()
+        if (bufferedArtwork != null) {
+            Log.i("ANTONY_PROVIDER", "Serving artwork " + bufferedArtwork.token + " from prefetch buffer")
+            addArtwork(bufferedArtwork)
+        }
         val sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context)
         if (sharedPrefs.getBoolean("pref_dataMode", false) && isOnMobileData()) {
             Log.i("ANTONY_PROVIDER", "Data saver mode, stopping new artwork download")
             return
         }
-        PixivArtWorker.enqueueLoad(false, context)
+        PixivArtWorker.enqueueLoad(false, bufferedArtwork == null, context)
     }
 
     override fun getCommandActions(artwork: Artwork): List<RemoteActionCompat> {
@@ -179,11 +184,9 @@ class PixivArtProvider : MuzeiArtProvider() {
             }
             MuzeiCommandManager.COMMAND_SHARE_IMAGE -> {
                 Log.d("ANTONY_WORKER", "Opening sharing ")
-                artwork.token
-                        ?.takeIf { it.isNotEmpty() }
-                        ?.let { token ->
-                            File(context.getExternalFilesDir(Environment.DIRECTORY_PICTURES), "$token.png")
-                        }
+                artwork.persistentUri
+                        ?.path
+                        ?.let { path -> File(path) }
                         ?.let { file ->
                             FileProvider.getUriForFile(context, "${BuildConfig.APPLICATION_ID}.fileprovider", file)
                         }
@@ -229,37 +232,12 @@ class PixivArtProvider : MuzeiArtProvider() {
                         .addHeader("Content-Type", "application/x-www-form-urlencoded")
                         .addHeader("User-Agent", PixivArtProviderDefines.APP_USER_AGENT)
                         .addHeader("Authorization", "Bearer $accessToken")
-                        .addHeader("Connection", "close")
                         .post(authData)
                         .url(rankingUrl)
                         .build()
 
-                var httpClient: OkHttpClient? = null
-                if (Locale.getDefault().isO3Language == "zho") {
-                    val builder = OkHttpClient.Builder()
-                    builder.sslSocketFactory(RubySSLSocketFactory(), object : X509TrustManager {
-                        @SuppressLint("TrustAllX509TrustManager")
-                        override fun checkClientTrusted(x509Certificates: Array<X509Certificate>, s: String) {
-                        }
-
-                        @SuppressLint("TrustAllX509TrustManager")
-                        override fun checkServerTrusted(x509Certificates: Array<X509Certificate>, s: String) {
-                        }
-
-                        override fun getAcceptedIssuers(): Array<X509Certificate> {
-                            return arrayOf()
-                        }
-                    }) //SNI bypass
-                    builder.hostnameVerifier { s: String?, sslSession: SSLSession? -> true } //disable hostnameVerifier
-                    builder.addInterceptor(NetworkTrafficLogInterceptor())
-                    builder.dns(RubyHttpDns()) //define the direct ip address
-                    httpClient = builder.build()
-                    /* SNI Bypass end */
-                }
-
-                if (httpClient == null) {
-                    return
-                }
+                // Goes through the same client and connection pool as everything else, see RestClient
+                val httpClient = RestClient.getBookmarkCallFactory(NetworkPath.fromPreferences(sharedPrefs))
 
                 try {
                     httpClient.newCall(request).execute()
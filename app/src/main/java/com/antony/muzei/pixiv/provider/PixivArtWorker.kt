@@ -18,6 +18,7 @@
 package com.antony.muzei.pixiv.provider
 
 import android.Manifest
+import android.content.ContentResolver
 import android.content.ContentValues
 import android.content.Context
 import android.content.Intent
@@ -28,6 +29,7 @@ import android.graphics.BitmapFactory
 import android.net.Uri
 import android.os.Build
 import android.os.Environment
+import android.os.SystemClock
 import android.provider.MediaStore
 import android.util.Log
 import android.widget.Toast
@@ -36,33 +38,65 @@ import androidx.core.content.ContextCompat
 import androidx.core.net.toUri
 import androidx.preference.PreferenceManager
 import androidx.work.*
-import com.antony.muzei.pixiv.AppDatabase
 import com.antony.muzei.pixiv.BuildConfig
 import com.antony.muzei.pixiv.PixivMuzeiSupervisor.getAccessToken
 import com.antony.muzei.pixiv.PixivMuzeiSupervisor.post
 import com.antony.muzei.pixiv.R
 import com.antony.muzei.pixiv.provider.PixivArtProviderDefines.PIXIV_ARTWORK_URL
+import com.antony.muzei.pixiv.provider.download.FileType
+import com.antony.muzei.pixiv.provider.download.ImageDownsampler
+import com.antony.muzei.pixiv.provider.download.ImageStore
+import com.antony.muzei.pixiv.provider.download.ImageVariantSelector
+import com.antony.muzei.pixiv.provider.download.RemoteExtensionIndex
+import com.antony.muzei.pixiv.provider.download.TeeSink
+import com.antony.muzei.pixiv.provider.download.VerifyingSink
 import com.antony.muzei.pixiv.provider.exceptions.AccessTokenAcquisitionException
 import com.antony.muzei.pixiv.provider.exceptions.CorruptFileException
 import com.antony.muzei.pixiv.provider.exceptions.FilterMatchNotFoundException
-import com.antony.muzei.pixiv.provider.exceptions.LoopFilterMatchNotFoundException
-import com.antony.muzei.pixiv.provider.network.AuthJsonServerResponse
+import com.antony.muzei.pixiv.provider.filter.ArtworkFilter
+import com.antony.muzei.pixiv.provider.filter.AuthArtworkFields
+import com.antony.muzei.pixiv.provider.filter.FilterSettings
+import com.antony.muzei.pixiv.provider.filter.FilterStatistics
+import com.antony.muzei.pixiv.provider.filter.IdPredicate
+import com.antony.muzei.pixiv.provider.filter.RankingArtworkFields
+import com.antony.muzei.pixiv.provider.network.AuthPageIterator
 import com.antony.muzei.pixiv.provider.network.ImageDownloadServerResponse
-import com.antony.muzei.pixiv.provider.network.RankingJsonServerResponse
+import com.antony.muzei.pixiv.provider.network.MoshiSingleton
+import com.antony.muzei.pixiv.provider.network.NetworkPath
+import com.antony.muzei.pixiv.provider.network.RankingPageFetcher
 import com.antony.muzei.pixiv.provider.network.RestClient
+import com.antony.muzei.pixiv.provider.network.RubySSLSocketFactory
+import com.antony.muzei.pixiv.provider.network.moshi.ArtworkStreamReader
 import com.antony.muzei.pixiv.provider.network.moshi.AuthArtwork
 import com.antony.muzei.pixiv.provider.network.moshi.Contents
 import com.antony.muzei.pixiv.provider.network.moshi.Illusts
 import com.antony.muzei.pixiv.provider.network.moshi.RankingArtwork
+import com.antony.muzei.pixiv.settings.deleteArtwork.DeletedArtworkIdSet
+import com.antony.muzei.pixiv.util.IntHashSet
 import com.google.android.apps.muzei.api.provider.Artwork
+import com.google.android.apps.muzei.api.provider.ProviderContract
 import com.google.android.apps.muzei.api.provider.ProviderContract.getProviderClient
 import com.squareup.moshi.JsonAdapter
-import com.squareup.moshi.Moshi
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.runBlocking
 import okhttp3.ResponseBody
+import okio.Sink
+import okio.buffer
+import okio.sink
+import okio.source
+import org.json.JSONArray
+import org.json.JSONException
 import retrofit2.Call
+import retrofit2.Callback
+import retrofit2.Response
 import java.io.*
 import java.util.*
+import java.util.concurrent.Executors
+import java.util.concurrent.LinkedBlockingQueue
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
 import kotlin.math.sqrt
 
 class PixivArtWorker(
@@ -74,12 +108,27 @@ class PixivArtWorker(
         private const val LOG_TAG = "ANTONY_WORKER"
         private const val WORKER_TAG = "ANTONY"
         private val IMAGE_EXTENSIONS = arrayOf(".png", ".jpg")
+        private const val PART_SUFFIX = ".part"
+        private const val DOWNSAMPLED_SUFFIX = ".downsampled"
+        private const val PREFERENCE_INTERRUPTED_DOWNLOADS = "interruptedDownloads"
+        private const val MAX_PAGE_PREFETCH_DEPTH = 3
         private var clearArtwork = false
 
+        // Set when Muzei is waiting on this worker for an artwork, as the prefetch buffer had none to hand over
+        // Otherwise the worker only tops up the prefetch buffer
+        private var submitRequested = false
+
         fun enqueueLoad(clear: Boolean, context: Context?) {
+            enqueueLoad(clear, true, context)
+        }
+
+        fun enqueueLoad(clear: Boolean, submit: Boolean, context: Context?) {
             if (clear) {
                 clearArtwork = true
             }
+            if (submit) {
+                submitRequested = true
+            }
             context?.also {
                 Constraints.Builder().apply {
                     setRequiredNetworkType(NetworkType.CONNECTED)
@@ -101,12 +150,29 @@ class PixivArtWorker(
         }
     }
 
-    enum class FileType {
-        OTHER, JPEG, PNG
-    }
+    // Ids of every artwork already in the ContentProvider, loaded once per run, along with
+    // the artworks selected during this run, which are not yet present in the ContentProvider
+    private val knownArtworkIds = IntHashSet()
+
+    private val filterStatistics by lazy { FilterStatistics(applicationContext) }
+
+    private var rankingFilter: ArtworkFilter<RankingArtwork>? = null
+    private var authFilter: ArtworkFilter<AuthArtwork>? = null
+
+    private class ExtensionProbeResult(val index: Int, val response: Response<ResponseBody>?, val failure: Throwable?)
+
+    private val extensionIndex by lazy { RemoteExtensionIndex(applicationContext) }
+
+    private val imageStore by lazy { ImageStore(applicationContext) }
+
+    private val prefetchBuffer by lazy { PrefetchBuffer(applicationContext) }
+
+    private val variantSelector by lazy { ImageVariantSelector.fromContext(applicationContext) }
+
+    private val downsampler by lazy { ImageDownsampler.fromContext(applicationContext) }
 
     private fun writeToFileIllusts(illusts: Illusts) {
-        val jsonAdapter: JsonAdapter<Illusts> = Moshi.Builder().build().adapter(Illusts::class.java)
+        val jsonAdapter: JsonAdapter<Illusts> = MoshiSingleton.getInstance().adapter(Illusts::class.java)
 
         val json = jsonAdapter.toJson(illusts)
         val file = File(applicationContext.externalCacheDir, "illusts.txt")
@@ -120,7 +186,7 @@ class PixivArtWorker(
     }
 
     private fun writeToFileRanking(contents: Contents) {
-        val jsonAdapter: JsonAdapter<Contents> = Moshi.Builder().build().adapter(Contents::class.java)
+        val jsonAdapter: JsonAdapter<Contents> = MoshiSingleton.getInstance().adapter(Contents::class.java)
 
         val json = jsonAdapter.toJson(contents)
         val file = File(applicationContext.externalCacheDir, "contents.txt")
@@ -136,16 +202,9 @@ class PixivArtWorker(
     /*
         Ranking images are only provided with a URL to a low resolution thumbnail
         We want the high resolution image, so we need to do some work first
-
-        Secondly, the thumbnail is always a .jpg
-        For the high resolution image we require a correct file extension
-        This method tests all file extensions (PNG or JPG) until a good response is received
-            i.e. a response that is not a 400 class error
-        Returns a ResponseBody which contains the picture to download
+        This method transforms the thumbnail URL into the original image URL, minus the file extension
     */
-    @Throws(IOException::class)
-    private fun getRemoteFileExtension(url: String): ResponseBody? {
-        Log.i(LOG_TAG, "Getting remote file extensions")
+    private fun getRankingOriginalUrlNoExtension(url: String): String {
         // This function is given a thumbnail URL like this
         //  https://tc-pximg01.techorus-cdn.com/c/240x480/img-master/img/2020/02/19/00/00/39/79583564_p0_master1200.jpg
 
@@ -153,22 +212,74 @@ class PixivArtWorker(
         // At this point we have a url like this:
         //  https://i.pximg.net/img-original/img/2020/02/19/00/00/39/79583564_p0.jpg
 
-        val transformUrlNoExtension = transformUrl.substring(0, transformUrl.length - 4)
+        return transformUrl.substring(0, transformUrl.length - 4)
         // Last transformation to remove the file extension
         //  https://i.pximg.net/img-original/img/2020/02/19/00/00/39/79583564_p0
+    }
+
+    /*
+        The thumbnail is always a .jpg
+        For the high resolution image we require a correct file extension
+        If this artwork has been downloaded before, the extension is looked up from the index
+        Otherwise all file extensions (PNG or JPG) are requested at the same time, and the first good response wins
+            i.e. a response that is not a 400 class error
+        The losing requests are cancelled, and the winning extension is recorded in the index
+        An interrupted download can only be resumed with a range once its extension is known, i.e. from the index
+        Returns a Response which contains the picture to download
+    */
+    @Throws(IOException::class)
+    private fun getRemoteFileExtension(transformUrlNoExtension: String,
+                                       service: ImageDownloadServerResponse,
+                                       range: String?): Response<ResponseBody>? {
+        Log.i(LOG_TAG, "Getting remote file extensions")
+        extensionIndex.get(transformUrlNoExtension)?.let { extension ->
+            val responseBodyResponse = service.downloadImage(transformUrlNoExtension + extension, range).execute()
+            // 416 means the range was bad, not the extension
+            if (responseBodyResponse.isSuccessful || responseBodyResponse.code() == 416) {
+                Log.i(LOG_TAG, "Remote file extension found in index")
+                return responseBodyResponse
+            }
+            // Stale entry, fall back to probing
+            responseBodyResponse.errorBody()?.close()
+            extensionIndex.remove(transformUrlNoExtension)
+        }
+
+        val calls = IMAGE_EXTENSIONS.map { extension -> service.downloadImage(transformUrlNoExtension + extension) }
+        val results = LinkedBlockingQueue<ExtensionProbeResult>()
+        val winnerFound = AtomicBoolean(false)
+        calls.forEachIndexed { index, call ->
+            call.enqueue(object : Callback<ResponseBody> {
+                override fun onResponse(call: Call<ResponseBody>, response: Response<ResponseBody>) {
+                    // Only a single successful response is ever handed over, any others are closed here
+                    if (response.isSuccessful && winnerFound.compareAndSet(false, true)) {
+                        results.put(ExtensionProbeResult(index, response, null))
+                    } else {
+                        response.body()?.close()
+                        response.errorBody()?.close()
+                        results.put(ExtensionProbeResult(index, null, null))
+                    }
+                }
 
-        val bypassActive = PreferenceManager.getDefaultSharedPreferences(applicationContext).getBoolean("pref_enableNetworkBypass", false)
-        for (extension in IMAGE_EXTENSIONS) {
-            val urlToTest = transformUrlNoExtension + extension
-            val service = RestClient.getRetrofitImageInstance(bypassActive).create(ImageDownloadServerResponse::class.java)
-            val responseBodyResponse = service.downloadImage(urlToTest).execute()
-            val response = responseBodyResponse.raw()
-            if (response.isSuccessful) {
+                override fun onFailure(call: Call<ResponseBody>, t: Throwable) {
+                    results.put(ExtensionProbeResult(index, null, t))
+                }
+            })
+        }
+
+        var failure: Throwable? = null
+        repeat(calls.size) {
+            val result = results.take()
+            if (result.response != null) {
+                // Cancelling the winning call would also abort the body we are about to read
+                calls.filterIndexed { index, _ -> index != result.index }.forEach { call -> call.cancel() }
+                extensionIndex.put(transformUrlNoExtension, IMAGE_EXTENSIONS[result.index])
                 Log.i(LOG_TAG, "Gotten remote file extensions")
-                return responseBodyResponse.body()
+                return result.response
             }
+            failure = failure ?: result.failure
         }
         Log.e(LOG_TAG, "Failed to get remote file extensions")
+        (failure as? IOException)?.let { throw it }
         // TODO don't throw a null, throw an exception
         return null
     }
@@ -176,185 +287,258 @@ class PixivArtWorker(
     /*
         PixivforMuzei3 often downloads an incomplete image, i.e. the lower section of images is not
         downloaded, the file header is intact but file closer is not present.
-        This function converts the image to a byte representation, then checks the last few bytes
-        in the image for a valid file closer.
+        This function streams the image into destination through a VerifyingSink, which checks for
+        a valid file closer as the bytes go past, so the finished file never has to be read back
+        If resuming an interrupted download, destination must be appending to resumedPart
         If image is incomplete, throws CorruptFileException
         Returns:
             PNG
             JPG
-            CorruptFileException
+            OTHER
     */
     @Throws(IOException::class, CorruptFileException::class)
-    private fun getLocalFileExtension(image: File): FileType {
-        Log.d(LOG_TAG, "getting file type")
-        val randomAccessFile = RandomAccessFile(image, "r")
-        val byteArray = ByteArray(10)
-        randomAccessFile.read(byteArray, 0, 2)
-        var fileType: FileType = FileType.OTHER
-
-        // ByteArray used instead of read()
-        //  read() increments the file-pointer offset, causing successive reads to read different bytes
-        if (byteArray[0] == 0x89.toByte() && byteArray[1] == 0x50.toByte()) {
-            randomAccessFile.seek(image.length() - 8)
-            if (randomAccessFile.readShort() == 0x4945.toShort() && randomAccessFile.readShort() == 0x4E44.toShort()) {
-                Log.d(LOG_TAG, "PNG")
-                fileType = FileType.PNG
+    private fun writeVerified(responseBody: ResponseBody, destination: Sink, resumedPart: File? = null): FileType {
+        val verifyingSink = VerifyingSink(destination, responseBody.contentLength())
+        resumedPart?.let { verifyingSink.resumeFrom(it) }
+        // readAll() hands okio's pooled segments straight through to the sink, so no buffer is allocated per image
+        // Time taken and heap in use are logged, so that downloads can be compared on a device
+        val startTime = SystemClock.elapsedRealtime()
+        val bytesWritten = verifyingSink.use { sink ->
+            responseBody.source().readAll(sink)
+        }
+        val runtime = Runtime.getRuntime()
+        Log.d(LOG_TAG, "Wrote " + bytesWritten + " bytes in " + (SystemClock.elapsedRealtime() - startTime) +
+                " milliseconds, " + (runtime.totalMemory() - runtime.freeMemory()) / 1024 + " KiB of heap in use")
+        return verifyingSink.verify().also { Log.d(LOG_TAG, "Verified $it") }
+    }
+
+    /*
+        A copy of an artwork being exported into external storage, for the user to keep
+        The external storage copy is not used for backing any database
+     */
+    private class ExternalExport(val uri: Uri, val outputStream: OutputStream)
+
+    /*
+        Creates the external storage copy for an artwork, if the user has chosen to store artworks into
+        external storage and there is not already a copy there
+        Returns null if no copy is to be made
+     */
+    private fun openExternalExport(filename: String): ExternalExport? {
+        val context = applicationContext
+        val sharedPrefs = PreferenceManager.getDefaultSharedPreferences(applicationContext)
+        // TODO stop the hardcode
+        val fileExtension = FileType.PNG
+
+        // Android 10 introduced Scoped Storage, aimed at making storage security stronger
+        // Results in more hoops to go through to write files
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            val contentResolver = context.contentResolver
+            val contentValues = ContentValues()
+
+            // Check if existing copy of file exists
+            val projection = arrayOf(MediaStore.Images.Media._ID)
+            val selection = "title = ?"
+            //String selection = {MediaStore.Images.Media.DISPLAY_NAME + " = ? AND ", MediaStore.Images.Media.RELATIVE_PATH + " = ?"};
+            val selectionArgs = arrayOf(filename)
+            val cursor = contentResolver.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, projection, selection, selectionArgs, null)
+            val copyExists = cursor!!.count != 0
+            cursor.close()
+            if (copyExists) {
+                return null
+            }
+
+            contentValues.put(MediaStore.Images.Media.DISPLAY_NAME, filename)
+            contentValues.put(MediaStore.Images.Media.RELATIVE_PATH, Environment.DIRECTORY_PICTURES + "/PixivForMuzei3")
+            if (fileExtension == FileType.PNG) {
+                contentValues.put(MediaStore.MediaColumns.MIME_TYPE, "image/png")
+            } else if (fileExtension == FileType.JPEG) {
+                contentValues.put(MediaStore.MediaColumns.MIME_TYPE, "image/jpeg")
+            }
+            // Hidden from other apps until the download has completed
+            contentValues.put(MediaStore.MediaColumns.IS_PENDING, 1)
+
+            // Phone external storage is always "external_primary"
+            // If user has selected artwork to be stored on SD Card external storage, then we fetch a list of
+            // all mounted storages, and then select teh one which isn't "external_primary"
+            // I had assumed that external_primary was always in position 0, but a user report indicated
+            // that external;_primary was in position 1 for them
+            var volumeName = ""
+            if (sharedPrefs.getString("pref_selectWhichExtStorage", "phone").equals("phone")) {
+                volumeName = MediaStore.VOLUME_EXTERNAL_PRIMARY
             } else {
-                randomAccessFile.close()
-                throw CorruptFileException("Corrupt PNG")
+                val stringSet = MediaStore.getExternalVolumeNames(applicationContext)
+                for (s: String in stringSet) {
+                    if (s != MediaStore.VOLUME_EXTERNAL_PRIMARY) {
+                        volumeName = s
+                    }
+                }
+            }
+
+            // Gives us a URI to save the image to
+            val imageUriExternal = contentResolver.insert(MediaStore.Images.Media.getContentUri(volumeName), contentValues)!!
+            return ExternalExport(imageUriExternal, contentResolver.openOutputStream(imageUriExternal)!!)
+        }
+        // Android 9 or lower
+        else {
+            val directoryString = "/storage/emulated/0/Pictures/PixivForMuzei3/"
+            val directory = File(directoryString)
+            if (!directory.exists()) {
+                directory.mkdirs()
             }
-        } else if (byteArray[0] == 0xFF.toByte() && byteArray[1] == 0xD8.toByte()) {
-            randomAccessFile.seek(image.length() - 2)
-            if (randomAccessFile.readShort() == 0xFFD9.toShort()) {
-                Log.d(LOG_TAG, "JPG")
-                fileType = FileType.JPEG
+
+            // If the image has already been downloaded, do not redownload
+            val imagePng = File(directoryString, "$filename.png")
+            val imageJpg = File(directoryString, "$filename.jpg")
+            if (imageJpg.exists() || imagePng.exists()) {
+                return null
+            }
+            val imageExternal = if (fileExtension == FileType.JPEG) imageJpg else imagePng
+            return ExternalExport(Uri.fromFile(imageExternal), FileOutputStream(imageExternal))
+        }
+    }
+
+    // Makes a completed external storage copy visible in the user's gallery
+    private fun publishExternalExport(export: ExternalExport) {
+        if (export.uri.scheme == ContentResolver.SCHEME_CONTENT) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                val contentValues = ContentValues()
+                contentValues.put(MediaStore.MediaColumns.IS_PENDING, 0)
+                applicationContext.contentResolver.update(export.uri, contentValues, null, null)
+            }
+        } else {
+            applicationContext.sendBroadcast(Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, export.uri))
+        }
+    }
+
+    // Does not leave a truncated image behind in the user's gallery
+    // Never throws, as it is called while the download itself may still go through
+    private fun discardExternalExport(export: ExternalExport) {
+        try {
+            export.outputStream.close()
+        } catch (e: IOException) {
+            // Being deleted anyway
+        }
+        try {
+            if (export.uri.scheme == ContentResolver.SCHEME_CONTENT) {
+                applicationContext.contentResolver.delete(export.uri, null, null)
             } else {
-                randomAccessFile.close()
-                throw CorruptFileException("Corrupt JPG")
+                export.uri.path?.let { File(it).delete() }
             }
+        } catch (e: Exception) {
+            Log.w(LOG_TAG, "Unable to delete the incomplete external storage copy " + export.uri, e)
         }
-        randomAccessFile.close()
-        return fileType
     }
 
     /*
         First downloads the file to ExternalFilesDir, always with a png file extension
-        Checks if the file is incomplete; if incomplete deletes it and passes a CorruptFileException
-        up the chain
-        Otherwise returns a Uri to the File to the caller
-        If option is checked, also makes a copy into external storage
-        The external storage copy is not used for backing any database
+        resumeFrom is the number of bytes of an interrupted download that responseBody continues on from
+        Checks if the file is incomplete while downloading; if incomplete deletes it and passes a
+        CorruptFileException up the chain
+        Otherwise moves the file into the image store, and returns a Uri to the stored File to the caller
+        If option is checked, the same network read is also teed into a copy in external storage
+        A resumed download cannot be teed, as the external copy would be missing the start of the image,
+        so it is instead copied over from ExternalFilesDir once complete
+        The returned Uri is always the image store copy, which sharing and cropping rely on
         The external storage copy also has correct file extensions
+        Failing to make the external storage copy is only logged, the image store copy goes through regardless
      */
     @Throws(IOException::class, CorruptFileException::class)
-    private fun downloadFile(responseBody: ResponseBody?,
-                             filename: String): Uri {
+    private fun downloadFile(responseBody: ResponseBody,
+                             filename: String,
+                             storeKey: String,
+                             resumeFrom: Long): Uri {
         Log.i(LOG_TAG, "Downloading file")
-        val context = applicationContext
         val sharedPrefs = PreferenceManager.getDefaultSharedPreferences(applicationContext)
 
         // If the user has desired to store artworks into external storage
-        if (sharedPrefs.getBoolean("pref_storeInExtStorage", false) &&
-                ContextCompat.checkSelfPermission(applicationContext, Manifest.permission.WRITE_EXTERNAL_STORAGE)
-                == PackageManager.PERMISSION_GRANTED) {
-            var allowedToStoreIntoExternal = false
-            // TODO stop the hardcode
-            val fileExtension = FileType.PNG
-            var fosExternal: OutputStream? = null
-            var imageUriExternal: Uri? = Uri.EMPTY
-
-            // Android 10 introduced Scoped Storage, aimed at making storage security stronger
-            // Results in more hoops to go through to write files
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-                val contentResolver = context.contentResolver
-                val contentValues = ContentValues()
-
-                // Check if existing copy of file exists
-                val projection = arrayOf(MediaStore.Images.Media._ID)
-                val selection = "title = ?"
-                //String selection = {MediaStore.Images.Media.DISPLAY_NAME + " = ? AND ", MediaStore.Images.Media.RELATIVE_PATH + " = ?"};
-                val selectionArgs = arrayOf(filename)
-                val cursor = contentResolver.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, projection, selection, selectionArgs, null)
-                if (cursor!!.count == 0) {
-                    contentValues.put(MediaStore.Images.Media.DISPLAY_NAME, filename)
-                    contentValues.put(MediaStore.Images.Media.RELATIVE_PATH, Environment.DIRECTORY_PICTURES + "/PixivForMuzei3")
-                    if (fileExtension == FileType.PNG) {
-                        contentValues.put(MediaStore.MediaColumns.MIME_TYPE, "image/png")
-                    } else if (fileExtension == FileType.JPEG) {
-                        contentValues.put(MediaStore.MediaColumns.MIME_TYPE, "image/jpeg")
-                    }
-
-                    // Phone external storage is always "external_primary"
-                    // If user has selected artwork to be stored on SD Card external storage, then we fetch a list of
-                    // all mounted storages, and then select teh one which isn't "external_primary"
-                    // I had assumed that external_primary was always in position 0, but a user report indicated
-                    // that external;_primary was in position 1 for them
-                    var volumeName = ""
-                    if (sharedPrefs.getString("pref_selectWhichExtStorage", "phone").equals("phone")) {
-                        volumeName = MediaStore.VOLUME_EXTERNAL_PRIMARY
-                    } else {
-                        val stringSet = MediaStore.getExternalVolumeNames(applicationContext)
-                        for (s: String in stringSet) {
-                            if (s != MediaStore.VOLUME_EXTERNAL_PRIMARY) {
-                                volumeName = s
-                            }
-                        }
-                    }
+        var export = if (isStoringIntoExternal()) {
+            try {
+                openExternalExport(filename)
+            } catch (e: Exception) {
+                Log.w(LOG_TAG, "Unable to create the external storage copy of $filename", e)
+                null
+            }
+        } else null
 
-                    // Gives us a URI to save the image to
-                    imageUriExternal = contentResolver.insert(MediaStore.Images.Media.getContentUri(volumeName), contentValues)!!
-                    fosExternal = contentResolver.openOutputStream(imageUriExternal)
-                    allowedToStoreIntoExternal = true
+        // The image is downloaded into a .part file, and only moved into the store once complete, so that
+        // Muzei never sees a half written image. If the download is interrupted, the .part file is kept to be resumed
+        val imagePart = getPartFile(storeKey)
+        try {
+            if (resumeFrom > 0) {
+                Log.i(LOG_TAG, "Resuming download of $filename from byte $resumeFrom")
+                writeVerified(responseBody, FileOutputStream(imagePart, true).sink(), imagePart)
+            } else if (export != null) {
+                val teeSink = TeeSink(FileOutputStream(imagePart).sink(), export.outputStream.sink())
+                writeVerified(responseBody, teeSink)
+                val exportFailure = teeSink.secondaryFailure
+                if (exportFailure != null) {
+                    Log.w(LOG_TAG, "Unable to write the external storage copy of $filename", exportFailure)
+                    discardExternalExport(export)
+                    export = null
                 }
-                cursor.close()
-
-                // TODO somehow get a file handle when storing artworks into external storage on Android 10
-                // only available android 10+
-//                if (sharedPrefs.getBoolean("pref_autoCrop", false) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-//                    cropBlankSpaceFromImage(imageJpg)
-//                }
+            } else {
+                writeVerified(responseBody, FileOutputStream(imagePart).sink())
             }
-            // Android 9 or lower
-            else {
-                val directoryString = "/storage/emulated/0/Pictures/PixivForMuzei3/"
-                val directory = File(directoryString)
-                if (!directory.exists()) {
-                    directory.mkdirs()
-                }
+        } catch (e: CorruptFileException) {
+            imagePart.delete()
+            export?.let { discardExternalExport(it) }
+            throw e
+        } catch (e: IOException) {
+            // The .part file is resumable, the external storage copy is not
+            export?.let { discardExternalExport(it) }
+            throw e
+        }
 
-                // If the image has already been downloaded, do not redownload
-                val imagePng = File(directoryString, "$filename.png")
-                val imageJpg = File(directoryString, "$filename.jpg")
-                if (!imageJpg.exists() && !imagePng.exists()) {
-                    if (fileExtension == FileType.PNG) {
-                        fosExternal = FileOutputStream(imagePng)
-                        imageUriExternal = Uri.fromFile(imagePng)
-                        context.sendBroadcast(Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, Uri.fromFile(imagePng)))
-                    } else if (fileExtension == FileType.JPEG) {
-                        fosExternal = FileOutputStream(imageJpg)
-                        imageUriExternal = Uri.fromFile(imageJpg)
-                        context.sendBroadcast(Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, Uri.fromFile(imageJpg)))
+        export?.let {
+            try {
+                if (resumeFrom > 0) {
+                    it.outputStream.sink().use { sink ->
+                        imagePart.source().use { source -> source.buffer().readAll(sink) }
                     }
-                    allowedToStoreIntoExternal = true
-                }
-            }
-            // Now download into external storage
-            if (allowedToStoreIntoExternal) {
-                val fis = responseBody!!.byteStream()
-                val buffer = ByteArray(1024 * 1024 * 10)
-                var lengthInternal: Int
-                while (fis.read(buffer).also { lengthInternal = it } > 0) {
-                    fosExternal!!.write(buffer, 0, lengthInternal)
                 }
-                fosExternal!!.close()
-                fis.close()
-                return imageUriExternal!!
+                publishExternalExport(it)
+            } catch (e: Exception) {
+                Log.w(LOG_TAG, "Unable to complete the external storage copy of $filename", e)
+                discardExternalExport(it)
             }
         }
 
-        // If user has not checked the option to "Store into external storage"
-        val imageInternal = File(context.getExternalFilesDir(Environment.DIRECTORY_PICTURES), "$filename.png")
-        val fosInternal = FileOutputStream(imageInternal)
-        val inputStreamNetwork = responseBody!!.byteStream()
-        val bufferTemp = ByteArray(1024 * 1024 * 10)
-        var readTemp: Int
-        while (inputStreamNetwork.read(bufferTemp).also { readTemp = it } != -1) {
-            fosInternal.write(bufferTemp, 0, readTemp)
+        // Downsampled only after the external storage copy is published, which always stays the full original,
+        // and before cropping, so that cropping decodes the smaller image
+        val downsamplePolicy = sharedPrefs.getString("pref_downsampleOnIngest", "off")
+        val ingested = if (downsamplePolicy != "off") {
+            downsampleOnIngest(imagePart, storeKey, downsamplePolicy == "keep")
+        } else {
+            imagePart
         }
-        inputStreamNetwork.close()
-        fosInternal.close()
-        responseBody.close()
 
         // only available android 10+
+        // Cropped before being stored, so that the stored image is named after what is actually on disk
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && sharedPrefs.getBoolean("pref_autoCrop", false)) {
-            cropBlankSpaceFromImage(imageInternal)
+            cropBlankSpaceFromImage(ingested)
         }
 
-        return Uri.fromFile(imageInternal)
-
+        return Uri.fromFile(imageStore.commit(storeKey, ingested))
+    }
 
-        // TODO make this an enum
-        //val fileExtension = getLocalFileExtension(imageInternal)
+    /*
+        Scales the downloaded image down to wallpaper resolution, and returns the file to be stored in its place
+        The original is then either committed to the image store under its own key, where it lives on until evicted
+        like any other unreferenced blob, or deleted straight away
+        If the image is already small enough, or cannot be downsampled, the original itself is returned to be stored
+     */
+    @Throws(IOException::class)
+    private fun downsampleOnIngest(imagePart: File, storeKey: String, keepOriginal: Boolean): File {
+        val downsampled = File(imagePart.path + DOWNSAMPLED_SUFFIX)
+        if (!downsampler.downsample(imagePart, downsampled)) {
+            return imagePart
+        }
+        if (keepOriginal) {
+            imageStore.commit(storeKey + ImageStore.ORIGINAL_KEY_SUFFIX, imagePart)
+        } else {
+            imagePart.delete()
+        }
+        return downsampled
     }
 
     // stolen from https://stackoverflow.com/a/12645803
@@ -424,84 +608,63 @@ class PixivArtWorker(
         return percentAway > 0.10
     }
 
-    // TODO is this even necessary anymore
-    private fun isArtworkNull(artwork: Artwork?): Boolean =
-            artwork.also {
-                it ?: Log.e(LOG_TAG, "Null artwork returned, retrying at later time")
-            } == null
-
     /*
-        Provided an artowrk ID (token), traverses the PixivArtProvider ContentProvider to sees
-        if there is already a duplicate artwork with the same ID (token)
+        Loads the tokens of every artwork in the PixivArtProvider ContentProvider in a single query
+        Checking for duplicates then no longer costs a ContentProvider query for each candidate artwork
      */
-    private fun isDuplicateArtwork(token: Int): Boolean {
-        var duplicateFound = false
-        val projection = arrayOf("_id")
-        val selection = "token = ?"
-        val selectionArgs = arrayOf(token.toString())
+    private fun loadKnownArtworkIds() {
+        val projection = arrayOf(ProviderContract.Artwork.TOKEN)
         val conResUri = getProviderClient(applicationContext, PixivArtProvider::class.java).contentUri
-        val cursor: Cursor? = applicationContext.contentResolver.query(conResUri, projection, selection, selectionArgs, null)
-
-        if (cursor != null) {
-            duplicateFound = cursor.count > 0
+        val cursor: Cursor = applicationContext.contentResolver.query(conResUri, projection, null, null, null)
+                ?: return
+        cursor.use {
+            while (it.moveToNext()) {
+                it.getString(0)?.toIntOrNull()?.let { token -> knownArtworkIds.add(token) }
+            }
         }
-        cursor?.close()
-        return duplicateFound
+        Log.d(LOG_TAG, "Loaded " + knownArtworkIds.size + " existing artwork ids")
     }
 
-    private fun hasDesiredPixelSize(
-            width: Int,
-            height: Int,
-            minimumWidth: Int,
-            minimumHeight: Int,
-            aspectRatioSetting: Int
-    ): Boolean =
-            when (aspectRatioSetting) {
-                0 -> height >= (minimumHeight * 10) && width >= (minimumWidth * 10)
-                1 -> height >= (minimumHeight * 10)
-                2 -> width >= (minimumWidth * 10)
-                else -> true
-            }
-
     /*
-        0   Any aspect ratio
-        1   Landscape
-        2   Portrait
+        Provided an artowrk ID (token), checks if there is already a duplicate artwork with the same ID (token)
+        either in the PixivArtProvider ContentProvider, or selected earlier during this run
      */
-    private fun isDesiredAspectRatio(
-            width: Int,
-            height: Int,
-            aspectRatioSetting: Int
-    ): Boolean =
-            when (aspectRatioSetting) {
-                0 -> true
-                1 -> height >= width
-                2 -> height <= width
-                else -> true
-            }
+    private fun isDuplicateArtwork(token: Int): Boolean = knownArtworkIds.contains(token)
 
-    // Scalar must match with scalar in SettingsActivity
-    private fun isEnoughViews(
-            artworkViewCount: Int,
-            minimumDesiredViews: Int
-    ): Boolean = artworkViewCount >= minimumDesiredViews * 500
-
-    private fun isImageTooLarge(sizeBytes: Long, limitBytes: Long): Boolean = sizeBytes > limitBytes
-
-    private fun isBeenDeleted(artworkId: Int): Boolean =
-            (AppDatabase.getInstance(applicationContext)?.deletedArtworkIdDao()?.isRowIsExist(artworkId)!!)
+    private fun isBeenDeleted(artworkId: Int): Boolean = DeletedArtworkIdSet.contains(applicationContext, artworkId)
 
+    /*
+        The filters are compiled from the user's settings on first use, and reused for the rest of the run
+     */
+    private fun getRankingFilter(): ArtworkFilter<RankingArtwork> =
+            rankingFilter ?: ArtworkFilter.compile(
+                    RankingArtworkFields,
+                    FilterSettings.fromPreferences(PreferenceManager.getDefaultSharedPreferences(applicationContext)),
+                    false,
+                    IdPredicate { isDuplicateArtwork(it) },
+                    IdPredicate { isBeenDeleted(it) }
+            ).also { rankingFilter = it }
+
+    private fun getAuthFilter(isRecommended: Boolean): ArtworkFilter<AuthArtwork> =
+            authFilter ?: ArtworkFilter.compile(
+                    AuthArtworkFields,
+                    FilterSettings.fromPreferences(PreferenceManager.getDefaultSharedPreferences(applicationContext)),
+                    isRecommended,
+                    IdPredicate { isDuplicateArtwork(it) },
+                    IdPredicate { isBeenDeleted(it) }
+            ).also { authFilter = it }
 
     /*
-        Receives a Contents object, which contains a representnation of a set of artworks
-        Passes it off to filterArtworkRanking(), which returns one ranking artwork
-        Builds an Artwork object off returned ranking artwork
+        Receives one or more pages of a ranking, which contain a representnation of a set of artworks
+        Picks one image at random that passes the user's various filtering settings
+        Builds a PendingArtwork off the picked ranking artwork, to be downloaded later
      */
-    @Throws(IOException::class, CorruptFileException::class, FilterMatchNotFoundException::class)
-    private fun getArtworkRanking(contents: Contents?): Artwork {
+    @Throws(FilterMatchNotFoundException::class)
+    private fun getArtworkRanking(rankingPages: RankingPageFetcher.RankingPages): PendingArtwork {
         Log.i(LOG_TAG, "getArtworkRanking(): Entering")
+        val contents = rankingPages.first
         var attribution = ""
-        when (contents!!.mode) {
+        when (contents.mode) {
             "daily" -> attribution = applicationContext.getString(R.string.attr_daily)
             "weekly" -> attribution = applicationContext.getString(R.string.attr_weekly)
             "monthly" -> attribution = applicationContext.getString(R.string.attr_monthly)
@@ -514,311 +677,235 @@ class PixivArtWorker(
         val attributionDate = contents.date
         val attTrans = attributionDate.substring(0, 4) + "/" + attributionDate.substring(4, 6) + "/" + attributionDate.substring(6, 8) + " "
 
-        //writeToFile(overallJson, "rankingLog.txt");
-        val sharedPrefs = PreferenceManager.getDefaultSharedPreferences(applicationContext)
-
-        // Filter variables, to pass to filterArtworkRanking()
-        val showManga = sharedPrefs.getBoolean("pref_showManga", false)
-        val defaultRankingSelect: MutableSet<String> = HashSet()
-        defaultRankingSelect.add("0")
-        val rankingFilterSelect = sharedPrefs.getStringSet("pref_rankingFilterSelect", defaultRankingSelect)
-        val aspectRatioSettings = sharedPrefs.getString("pref_aspectRatioSelect", "0")!!.toInt()
-        val minimumViews = sharedPrefs.getInt("prefSlider_minViews", 0)
-
         // Filtering
-        val rankingArtwork = filterArtworkRanking(contents.artworks.toMutableList(),
-                showManga,
-                rankingFilterSelect,
-                aspectRatioSettings,
-                minimumViews,
-                sharedPrefs.getInt("prefSlider_minimumWidth", 0),
-                sharedPrefs.getInt("prefSlider_minimumHeight", 0)
-        )
+        val rankingArtwork = getRankingFilter().firstAccepted(rankingPages.artworks.shuffled())
+                ?: throw FilterMatchNotFoundException("All artworks in traversed, fetching a new Contents")
 
         // Variables to submit to Muzei
-        val token = rankingArtwork!!.illust_id.toString()
+        val token = rankingArtwork.illust_id.toString()
+        knownArtworkIds.add(rankingArtwork.illust_id)
         attribution = attTrans + attribution
         attribution += rankingArtwork.rank
 
-        // Actually downloading the selected artwork
-        val remoteFileExtension = getRemoteFileExtension(rankingArtwork.url)
-        val localUri = downloadFile(remoteFileExtension, token)
-
-//        val fileSizeLimit = sharedPrefs.getInt("prefSlider_maxFileSize", 0)
-//        // 1024 scalar to convert MB to byte
-//        if (fileSizeLimit != 0 && isImageTooLarge(remoteFileExtension!!.contentLength(), fileSizeLimit * 1048576.toLong()))
-//        {
-//            Log.v("SIZE", "too chonk")
-//            //throw new ImageTooLargeException("");
-//            // grab a new image, somehwo loop back
-//        }
-//        else
-//        {
-//            Log.v("SIZE", "good size")
-//        }
-        remoteFileExtension!!.close()
-        Log.i(LOG_TAG, "getArtworkRanking(): Exited")
-        return Artwork.Builder()
-                .title(rankingArtwork.title)
-                .byline(rankingArtwork.user_name)
-                .attribution(attribution)
-                .persistentUri(localUri)
-                .token(token)
-                .webUri((PIXIV_ARTWORK_URL + token).toUri())
-                .build()
-    }
-
-    /*
-        Filters through a MutableList containing RankingArtwork's.
-        Picks one image based on the user's various filtering settings.
+        // Only the original needs its file extension found, the other renditions are always JPEGs
+        val variant = variantSelector.select(rankingArtwork.width, rankingArtwork.height)
+        Log.d(LOG_TAG, "Downloading the " + variant + " rendition of " + token)
 
-            NSFW filtering is performed by checking the value of the "sexual" JSON string
-            Manga filtering is performed by checking the value of the "illust_type" JSON string
-    */
-    @Throws(FilterMatchNotFoundException::class)
-    private fun filterArtworkRanking(rankingArtworkList: MutableList<RankingArtwork>,
-                                     showManga: Boolean,
-                                     selectedFilterLevelSet: Set<String>?,
-                                     aspectRatioSetting: Int,
-                                     minimumViews: Int,
-                                     minimumWidth: Int,
-                                     minimumHeight: Int
-    ): RankingArtwork? {
-        Log.i(LOG_TAG, "filterRanking(): Entering")
-
-        rankingArtworkList.shuffle()
-        for (randomArtwork in rankingArtworkList) {
-            try {
-                return filterRankingArtworkSingle(randomArtwork,
-                        showManga,
-                        selectedFilterLevelSet,
-                        aspectRatioSetting,
-                        minimumViews,
-                        minimumWidth,
-                        minimumHeight)
-            } catch (e: LoopFilterMatchNotFoundException) {
-                Log.e(LOG_TAG, e.message!!)
-                continue
-            }
-        }
-        throw FilterMatchNotFoundException("All artworks in traversed, fetching a new Contents")
-    }
-
-    private fun filterRankingArtworkSingle(rankingArtwork: RankingArtwork,
-                                           showManga: Boolean,
-                                           selectedFilterLevelSet: Set<String>?,
-                                           aspectRatioSetting: Int,
-                                           minimumViews: Int,
-                                           minimumWidth: Int,
-                                           minimumHeight: Int
-    ): RankingArtwork {
-        if (isDuplicateArtwork(rankingArtwork.illust_id)) {
-            throw LoopFilterMatchNotFoundException("Duplicate ID: " + rankingArtwork.illust_id)
-        }
-        if (!isEnoughViews(rankingArtwork.view_count, minimumViews)) {
-            throw LoopFilterMatchNotFoundException("Not enough views " + rankingArtwork.illust_id)
-        }
-        if (!showManga && rankingArtwork.illust_type == 1) {
-            throw LoopFilterMatchNotFoundException("Manga not desired " + rankingArtwork.illust_id)
-        }
-        if (!isDesiredAspectRatio(rankingArtwork.width,
-                        rankingArtwork.height, aspectRatioSetting)) {
-            throw LoopFilterMatchNotFoundException("Rejecting aspect ratio " + rankingArtwork.illust_id)
-        }
-        if (!hasDesiredPixelSize(rankingArtwork.width, rankingArtwork.height, minimumWidth, minimumHeight, aspectRatioSetting)) {
-            throw LoopFilterMatchNotFoundException("Image below desired pixel size " + rankingArtwork.illust_id)
-        }
-        if (isBeenDeleted(rankingArtwork.illust_id)) {
-            throw LoopFilterMatchNotFoundException("Previously deleted " + rankingArtwork.illust_id)
-        }
-
-        if (selectedFilterLevelSet!!.size == 2) {
-            return rankingArtwork
-        } else {
-            for (s in selectedFilterLevelSet) {
-                if (s.toInt() == rankingArtwork.illust_content_type.sexual) {
-                    Log.v(LOG_TAG, "matching NSFW " + rankingArtwork.illust_id)
-                    return rankingArtwork
-                }
-            }
-            throw LoopFilterMatchNotFoundException("not matching NSFW " + rankingArtwork.illust_id)
-        }
+        Log.i(LOG_TAG, "getArtworkRanking(): Exited")
+        return PendingArtwork(
+                token = token,
+                title = rankingArtwork.title,
+                byline = rankingArtwork.user_name,
+                attribution = attribution,
+                imageUrl = if (variant == ImageVariantSelector.Variant.ORIGINAL) {
+                    getRankingOriginalUrlNoExtension(rankingArtwork.url)
+                } else variant.urlFrom(rankingArtwork.url),
+                needsExtensionProbe = variant == ImageVariantSelector.Variant.ORIGINAL
+        )
     }
 
     /*
         Receives a list of auth artworks
-        Passes it off to filterArtworkRanking(), which returns one ranking artwork
-        Builds an Artwork object off returned ranking artwork
+        Picks one image at random that passes the user's various filtering settings
+        Builds a PendingArtwork off the picked auth artwork, to be downloaded later
      */
-    @Throws(FilterMatchNotFoundException::class, IOException::class, CorruptFileException::class)
-    private fun getArtworkAuth(authArtworkList: List<AuthArtwork>, isRecommended: Boolean): Artwork {
-        val sharedPrefs = PreferenceManager.getDefaultSharedPreferences(applicationContext)
-
-        // Filter variables to pass to filterArtworkAuth()
-        val aspectRatioSettings = sharedPrefs.getString("pref_aspectRatioSelect", "0")!!.toInt()
-        val showManga = sharedPrefs.getBoolean("pref_showManga", false)
-        // null default case allowed
-        // App *MUST* be first opened in order to change the update mode and log in
-        // Opening the app populates the shared preference with a default entry
-        // As opposed to ranking, where there can be an empty shared preference
-        val selectedFilterLevel = sharedPrefs.getStringSet("pref_authFilterSelect", null)
-        val minimumViews = sharedPrefs.getInt("prefSlider_minViews", 0)
-
+    @Throws(FilterMatchNotFoundException::class)
+    private fun getArtworkAuth(authArtworkList: List<AuthArtwork>, isRecommended: Boolean): PendingArtwork {
         // Filtering
-        val selectedArtwork = filterArtworkAuth(
-                authArtworkList.toMutableList(),
-                showManga,
-                selectedFilterLevel,
-                aspectRatioSettings,
-                minimumViews,
-                isRecommended,
-                sharedPrefs.getInt("prefSlider_minimumWidth", 0),
-                sharedPrefs.getInt("prefSlider_minimumHeight", 0)
-        )
+        val selectedArtwork = getAuthFilter(isRecommended).firstAccepted(authArtworkList.shuffled())
+                ?: throw FilterMatchNotFoundException("All artworks traversed, fetching a new Illusts")
 
         // Variables for submitting to Muzei
-        val imageUrl: String = if (selectedArtwork!!.meta_pages.size == 0) {
+        val originalUrl: String = if (selectedArtwork.meta_pages.size == 0) {
             Log.d(LOG_TAG, "Picture is a single image")
             selectedArtwork
                     .meta_single_page
-                    .original_image_url
+                    .original_image_url!!
         } else {
             Log.d(LOG_TAG, "Picture is part of an album")
             selectedArtwork
                     .meta_pages[0]
                     .image_urls
-                    .original
+                    .original!!
         }
         val token = selectedArtwork.id.toString()
-        val bypassActive = sharedPrefs.getBoolean("pref_enableNetworkBypass", false)
-
-        // Actually downloading the file
-        val service = RestClient.getRetrofitImageInstance(bypassActive).create(ImageDownloadServerResponse::class.java)
-        val call = service.downloadImage(imageUrl)
-        val imageDataResponse = call.execute().body()
-        val localUri = downloadFile(imageDataResponse, token)
-//        val fileSizeLimitMegabytes = sharedPrefs.getInt("prefSlider_maxFileSize", 0)
-//        // 1024 scalar to convert from MB to bytes
-//        if (fileSizeLimitMegabytes != 0 && isImageTooLarge(imageDataResponse!!.contentLength(), fileSizeLimitMegabytes * 1048576.toLong()))
-//        {
-//            Log.v("SIZE", "too chonk")
-//        }
-//        else
-//        {
-//            Log.v("SIZE", "good size")
-//        }
-
-        imageDataResponse!!.close()
+        knownArtworkIds.add(selectedArtwork.id)
+        val variant = variantSelector.select(selectedArtwork.width, selectedArtwork.height)
+        Log.d(LOG_TAG, "Downloading the " + variant + " rendition of " + token)
+        val imageUrl = if (variant == ImageVariantSelector.Variant.ORIGINAL) originalUrl else variant.urlFrom(originalUrl)
+
         Log.i(LOG_TAG, "getArtworkAuth(): Exited")
-        return Artwork.Builder()
-                .title(selectedArtwork.title)
-                .byline(selectedArtwork.user.name)
-                .persistentUri(localUri)
-                .token(token)
-                .webUri((PIXIV_ARTWORK_URL + token).toUri())
-                .build()
+        return PendingArtwork(
+                token = token,
+                title = selectedArtwork.title,
+                byline = selectedArtwork.user.name,
+                attribution = null,
+                imageUrl = imageUrl,
+                needsExtensionProbe = false
+        )
     }
 
-    /*
-        Called by getArtworkAuth to return details about an artwork that complies with
-        filtering restrictions set by the user
-
-        For NSFW filtering the two relevant JSON strings are "sanity_level" and "x_restrict"
-            sanity_level
-                2 -> Completely SFW
-                4 -> Moderately ecchi e.g. beach bikinis, slight upskirts
-                6 -> Very ecchi e.g. more explicit and suggestive themes
-             x_restrict
-                1 -> R18 e.g. nudity and penetration
+    private fun isStoringIntoExternal(): Boolean =
+            PreferenceManager.getDefaultSharedPreferences(applicationContext).getBoolean("pref_storeInExtStorage", false) &&
+                    ContextCompat.checkSelfPermission(applicationContext, Manifest.permission.WRITE_EXTERNAL_STORAGE) ==
+                    PackageManager.PERMISSION_GRANTED
 
-            In this code x_restrict is treated as a level 8 sanity_level
+    // Named after the store key rather than the token, so that each rendition of an artwork
+    // resumes only from a .part file of that same rendition
+    private fun getPartFile(storeKey: String): File =
+            File(applicationContext.getExternalFilesDir(Environment.DIRECTORY_PICTURES), "$storeKey.png$PART_SUFFIX")
 
-        For manga filtering, the value of the "type" string is checked for either "manga" or "illust"
+    /*
+        Requests the image of a selected artwork
+        If resumeFrom is non zero, only the bytes from that offset onwards are requested
      */
-    @Throws(FilterMatchNotFoundException::class)
-    private fun filterArtworkAuth(authArtworkList: MutableList<AuthArtwork>,
-                                  showManga: Boolean,
-                                  selectedFilterLevelSet: Set<String>?,
-                                  aspectRatioSetting: Int,
-                                  minimumViews: Int,
-                                  isRecommended: Boolean,
-                                  minimumWidth: Int,
-                                  minimumHeight: Int
-    ): AuthArtwork? {
-        Log.i(LOG_TAG, "filterArtworkAuth(): Entering")
-
-        authArtworkList.shuffle()
-        for (randomArtwork in authArtworkList) {
-            try {
-                return filterArtworkAuthSingle(randomArtwork,
-                        showManga,
-                        selectedFilterLevelSet,
-                        aspectRatioSetting,
-                        minimumViews,
-                        isRecommended,
-                        minimumWidth,
-                        minimumHeight)
-            } catch (e: LoopFilterMatchNotFoundException) {
-                Log.e(LOG_TAG, e.message!!)
-            }
+    @Throws(IOException::class)
+    private fun openImage(pendingArtwork: PendingArtwork,
+                          service: ImageDownloadServerResponse,
+                          resumeFrom: Long): Response<ResponseBody> {
+        val range = if (resumeFrom > 0) "bytes=$resumeFrom-" else null
+        val response = if (pendingArtwork.needsExtensionProbe) {
+            getRemoteFileExtension(pendingArtwork.imageUrl, service, range)
+        } else {
+            service.downloadImage(pendingArtwork.imageUrl, range).execute()
+        } ?: throw IOException("Unable to download " + pendingArtwork.imageUrl)
+
+        if (!response.isSuccessful) {
+            response.errorBody()?.close()
+            throw IOException("HTTP " + response.code() + " downloading " + pendingArtwork.imageUrl)
         }
-        throw FilterMatchNotFoundException("All artworks traversed, fetching a new Illusts")
+        return response
     }
 
-    private fun filterArtworkAuthSingle(authArtwork: AuthArtwork,
-                                        showManga: Boolean,
-                                        selectedFilterLevelSet: Set<String>?,
-                                        aspectRatioSetting: Int,
-                                        minimumViews: Int,
-                                        isRecommended: Boolean,
-                                        minimumWidth: Int,
-                                        minimumHeight: Int
-    ): AuthArtwork? {
-// Check if duplicate before any other check to not waste time
-        if (isDuplicateArtwork(authArtwork.id)) {
-            throw LoopFilterMatchNotFoundException("Duplicate ID: " + authArtwork.id)
+    /*
+        Downloads a single selected artwork, and builds the Artwork to submit to Muzei
+        If a previous attempt at downloading this artwork was interrupted, it is resumed with a Range request
+     */
+    @Throws(IOException::class, CorruptFileException::class)
+    private fun downloadArtwork(pendingArtwork: PendingArtwork, service: ImageDownloadServerResponse): Artwork {
+        // Already downloaded, possibly under a different update mode
+        // With downsampling turned off, a full size original kept aside when it was on is preferred
+        val downsampling = PreferenceManager.getDefaultSharedPreferences(applicationContext)
+                .getString("pref_downsampleOnIngest", "off") != "off"
+        val stored = (if (downsampling) null else imageStore.lookup(pendingArtwork.storeKey + ImageStore.ORIGINAL_KEY_SUFFIX))
+                ?: imageStore.lookup(pendingArtwork.storeKey)
+        stored?.let { blob ->
+            Log.i(LOG_TAG, "Reusing stored image for " + pendingArtwork.token)
+            return buildArtwork(pendingArtwork, Uri.fromFile(blob))
         }
 
-        // If user does not want manga to display
-        if (!showManga && authArtwork.type == "manga") {
-            throw LoopFilterMatchNotFoundException("Manga not desired " + authArtwork.id)
+        val partFile = getPartFile(pendingArtwork.storeKey)
+        var resumeFrom = if (partFile.exists()) partFile.length() else 0L
+        val imageDataResponse = try {
+            openImage(pendingArtwork, service, resumeFrom)
+        } catch (e: IOException) {
+            if (resumeFrom == 0L) {
+                throw e
+            }
+            // Most likely a 416, the .part file is no good so start again from the beginning
+            Log.w(LOG_TAG, "Could not resume " + pendingArtwork.token + ", restarting", e)
+            resumeFrom = 0L
+            openImage(pendingArtwork, service, resumeFrom)
+        }
+        // Server may ignore the range and send back the whole image
+        if (imageDataResponse.code() != 206) {
+            resumeFrom = 0L
         }
 
-        // Filter artwork based on chosen aspect ratio
-        if (!isDesiredAspectRatio(authArtwork.width,
-                        authArtwork.height, aspectRatioSetting)) {
-            throw LoopFilterMatchNotFoundException("Rejecting aspect ratio " + authArtwork.id)
+        val localUri = imageDataResponse.body()!!.use {
+            downloadFile(it, pendingArtwork.token, pendingArtwork.storeKey, resumeFrom)
         }
+        return buildArtwork(pendingArtwork, localUri)
+    }
+
+    private fun buildArtwork(pendingArtwork: PendingArtwork, localUri: Uri): Artwork =
+            Artwork.Builder()
+                    .title(pendingArtwork.title)
+                    .byline(pendingArtwork.byline)
+                    .attribution(pendingArtwork.attribution)
+                    .persistentUri(localUri)
+                    .token(pendingArtwork.token)
+                    .webUri((PIXIV_ARTWORK_URL + pendingArtwork.token).toUri())
+                    .build()
 
-        if (!hasDesiredPixelSize(authArtwork.width, authArtwork.height, minimumWidth, minimumHeight, aspectRatioSetting)) {
-            throw LoopFilterMatchNotFoundException("Image below desired pixel size " + authArtwork.id)
+    /*
+        Downloads the whole batch of selected artworks, with up to prefSlider_maxConcurrentDownloads
+        downloads in flight at once. All downloads share the one image client
+        Artworks with the same image URL are only downloaded once
+        A single failed download does not throw away the rest of the batch. Only if every download
+        has failed is the exception passed up, so that the work is retried
+        Downloads interrupted partway through are remembered, so that the next run can resume them
+     */
+    @Throws(IOException::class, CorruptFileException::class)
+    private fun downloadArtworks(pendingArtworkList: List<PendingArtwork>, networkPath: NetworkPath): ArrayList<Artwork> {
+        val artworkArrayList = ArrayList<Artwork>()
+        val uniquePendingArtworks = pendingArtworkList.distinctBy { it.imageUrl }
+        if (uniquePendingArtworks.isEmpty()) {
+            return artworkArrayList
         }
 
-        if (!isEnoughViews(authArtwork.total_view, minimumViews)) {
-            throw LoopFilterMatchNotFoundException("Not enough views " + authArtwork.id)
+        val maxConcurrentDownloads = PreferenceManager.getDefaultSharedPreferences(applicationContext)
+                .getInt("prefSlider_maxConcurrentDownloads", 3)
+                .coerceIn(1, uniquePendingArtworks.size)
+        Log.i(LOG_TAG, "Downloading " + uniquePendingArtworks.size + " artworks, " + maxConcurrentDownloads + " at a time")
+        val service = RestClient.getImageService(networkPath)
+
+        val results = Executors.newFixedThreadPool(maxConcurrentDownloads).asCoroutineDispatcher().use { dispatcher ->
+            runBlocking(dispatcher) {
+                uniquePendingArtworks.map { pendingArtwork ->
+                    async { runCatching { downloadArtwork(pendingArtwork, service) } }
+                }.awaitAll()
+            }
         }
 
-        if (isBeenDeleted(authArtwork.id)) {
-            throw LoopFilterMatchNotFoundException("Previously deleted " + authArtwork.id)
+        var firstFailure: Throwable? = null
+        val interruptedArtworks = mutableListOf<PendingArtwork>()
+        results.forEachIndexed { index, result ->
+            result.onSuccess { artworkArrayList.add(it) }
+                    .onFailure {
+                        Log.e(LOG_TAG, "Failed to download artwork", it)
+                        firstFailure = firstFailure ?: it
+                        interruptedArtworks.add(uniquePendingArtworks[index])
+                    }
+        }
+        saveInterruptedArtworks(interruptedArtworks)
+        if (artworkArrayList.isEmpty()) {
+            firstFailure?.let { throw it }
         }
+        return artworkArrayList
+    }
 
-        // All artworks in recommended are SFW, we can skip this check
-        if (isRecommended || selectedFilterLevelSet!!.size == 4) {
-            return authArtwork
-        } else {
-            // See if there is a match between chosen artwork's sanity level and those desired
-            for (s in selectedFilterLevelSet) {
-                if (s == authArtwork.sanity_Level.toString()) {
-                    Log.d(LOG_TAG, "sanity_level found is " + authArtwork.sanity_Level)
-                    Log.i(LOG_TAG, "Found artwork " + authArtwork.id)
-                    return authArtwork
-                } else if (s == "8" && authArtwork.x_restrict == 1) {
-                    Log.d(LOG_TAG, "x_restrict found " + authArtwork.id)
-                    return authArtwork
-                }
-            }
-            Log.d(LOG_TAG, "sanity_level found is " + authArtwork.sanity_Level)
-            throw LoopFilterMatchNotFoundException("NSFW not matching " + authArtwork.id)
+    /*
+        Remembers artworks whose download was interrupted, so that the next run downloads them again and
+        can resume from their .part file instead of selecting new artworks
+        Only artworks that left behind a .part file are worth remembering
+     */
+    private fun saveInterruptedArtworks(interruptedArtworks: List<PendingArtwork>) {
+        val jsonArray = JSONArray()
+        interruptedArtworks
+                .filter { getPartFile(it.storeKey).exists() }
+                .forEach { jsonArray.put(it.toJson()) }
+        PreferenceManager.getDefaultSharedPreferences(applicationContext).edit()
+                .putString(PREFERENCE_INTERRUPTED_DOWNLOADS, jsonArray.toString())
+                .apply()
+    }
+
+    /*
+        Returns the artworks interrupted during the previous run, and forgets them
+        If the cache was cleared or the update mode changed since, their .part files are gone and they are dropped
+     */
+    private fun takeInterruptedArtworks(): List<PendingArtwork> {
+        val sharedPrefs = PreferenceManager.getDefaultSharedPreferences(applicationContext)
+        val json = sharedPrefs.getString(PREFERENCE_INTERRUPTED_DOWNLOADS, null) ?: return emptyList()
+        sharedPrefs.edit().remove(PREFERENCE_INTERRUPTED_DOWNLOADS).apply()
+        return try {
+            val jsonArray = JSONArray(json)
+            (0 until jsonArray.length())
+                    .map { PendingArtwork.fromJson(jsonArray.getJSONObject(it)) }
+                    .filter { getPartFile(it.storeKey).exists() }
+        } catch (e: JSONException) {
+            Log.e(LOG_TAG, "Discarding unreadable interrupted downloads", e)
+            emptyList()
         }
     }
 
@@ -827,6 +914,7 @@ class PixivArtWorker(
         Obtains an up to date access token if required
         Obtains objects that represent each update mode, and will continue to obtain objects until
         enough artworks have satisfied
+        Artworks are first all selected, and then downloaded together as a batch
         Returns a list of Artwork's for submission into Muzei
      */
     @get:Throws(IOException::class, CorruptFileException::class)
@@ -875,13 +963,36 @@ class PixivArtWorker(
                 }
             }
 
-            val artworkArrayList = ArrayList<Artwork>()
-            var artwork: Artwork
-            val bypassActive = sharedPrefs.getBoolean("pref_enableNetworkBypass", false)
+            // Downloads interrupted last time are picked up before any new artworks are selected
+            val selectionStartTime = System.currentTimeMillis()
+            loadKnownArtworkIds()
+            val pendingArtworkList = ArrayList(takeInterruptedArtworks())
+            pendingArtworkList.forEach { knownArtworkIds.add(it.token.toInt()) }
+            prefetchBuffer.tokens().forEach { knownArtworkIds.add(it.toInt()) }
+            // Enough for Muzei if it is waiting on this run, and enough to top the prefetch buffer back up
+            val numToSubmit = if (clearArtwork || submitRequested) sharedPrefs.getInt("prefSlider_numToDownload", 2) else 0
+            val numToSelect = numToSubmit + prefetchBuffer.deficit() - pendingArtworkList.size
+            val networkPath = NetworkPath.fromPreferences(sharedPrefs)
+            if (numToSelect <= 0) {
+                return downloadArtworks(pendingArtworkList, networkPath)
+            }
+
+            // How many pages are likely to be needed is predicted from how well the filters did on earlier runs,
+            // and no more than pageBudget pages are fetched, however strict the filters are
+            val statisticsKey = updateMode + "|" + FilterSettings.fromPreferences(sharedPrefs).signature
+            val artworksPerPage = if (PixivArtProviderDefines.AUTH_MODES.contains(updateMode)) {
+                AuthPageIterator.ARTWORKS_PER_PAGE
+            } else {
+                RankingPageFetcher.ARTWORKS_PER_PAGE
+            }
+            val predictedPages = filterStatistics.predictedPages(statisticsKey, numToSelect, artworksPerPage)
+            val pageBudget = filterStatistics.pageBudget(statisticsKey, numToSelect, artworksPerPage)
+            Log.d(LOG_TAG, "Expecting to need " + predictedPages + " pages, budget of " + pageBudget)
+            val numToReach = pendingArtworkList.size + numToSelect
+            var pagesFetched = 1
             if (PixivArtProviderDefines.AUTH_MODES.contains(updateMode)) {
-                val service = RestClient.getRetrofitAuthInstance(bypassActive).create(AuthJsonServerResponse::class.java)
-                var call: Call<Illusts?>
-                call = when (updateMode) {
+                val service = RestClient.getAuthService(networkPath)
+                val call: Call<ResponseBody> = when (updateMode) {
                     "follow" -> service.followJson
                     "bookmark" -> service.getBookmarkJson(sharedPrefs.getString("userId", ""))
                     "recommended" -> service.recommendedJson
@@ -889,72 +1000,75 @@ class PixivArtWorker(
                     "tag_search" -> service.getTagSearchJson(sharedPrefs.getString("pref_tagSearch", ""))
                     else -> throw IllegalStateException("Unexpected value: $updateMode")
                 }
-                var illusts = call.execute().body()
+                // Pages are filtered on the plain fields while they are read, so they only hold candidates
+                val filter = getAuthFilter(updateMode == "recommended")
+                val illusts = call.execute().body()?.use { ArtworkStreamReader.readIllusts(it.source(), filter::acceptsFields) }
 
                 if (BuildConfig.DEBUG && illusts != null) {
                     writeToFileIllusts(illusts)
                 }
                 var authArtworkList = illusts!!.artworks
-                for (i in 0 until sharedPrefs.getInt("prefSlider_numToDownload", 2)) {
-                    try {
-                        artwork = getArtworkAuth(authArtworkList, updateMode == "recommended")
-                        if (isArtworkNull(artwork)) {
-                            throw CorruptFileException("")
+                // Following nextUrl until either the feed or the page budget runs out
+                // The next pages are fetched in the background while the current one is filtered, more of
+                // them ahead when the filters are expected to reject more, and none if one page should do
+                val prefetchDepth = (predictedPages - 1).coerceIn(0, MAX_PAGE_PREFETCH_DEPTH)
+                AuthPageIterator(service, illusts, pageBudget, prefetchDepth, filter::acceptsFields).use { nextPages ->
+                    while (pendingArtworkList.size < numToReach) {
+                        try {
+                            pendingArtworkList.add(getArtworkAuth(authArtworkList, updateMode == "recommended"))
+                        } catch (e: FilterMatchNotFoundException) {
+                            val nextPage = nextPages.next()
+                            if (nextPage == null) {
+                                Log.w(LOG_TAG, "Stopping after " + pagesFetched + " pages, found " + pendingArtworkList.size + " artworks")
+                                break
+                            }
+                            authArtworkList = nextPage.artworks
+                            pagesFetched++
                         }
-                        artworkArrayList.add(artwork)
-                    } catch (e: FilterMatchNotFoundException) {
-                        e.printStackTrace()
-                        // I'm not sure how many times we can keep getting the nextUrl
-                        // TODO implement a limit on the number of nextUrls
-                        call = service.getNextUrl(illusts!!.nextUrl)
-                        illusts = call.execute().body()
-                        authArtworkList = illusts!!.artworks
                     }
                 }
             } else {
-                val service = RestClient.getRetrofitRankingInstance(bypassActive).create(RankingJsonServerResponse::class.java)
-                var call = service.getRankingJson(updateMode)
-                var contents = call.execute().body()
-                if (BuildConfig.DEBUG && contents != null) {
-                    writeToFileRanking(contents)
-                }
-                var pageNumber = 1
-                var date = contents!!.date
-                var prevDate = contents.prev_date
-                for (i in 0 until sharedPrefs.getInt("prefSlider_numToDownload", 2)) {
-                    try {
-                        artwork = getArtworkRanking(contents)
-                        if (isArtworkNull(artwork)) {
-                            throw CorruptFileException("")
-                        }
-                        artworkArrayList.add(artwork)
-                    } catch (e: FilterMatchNotFoundException) {
-                        e.printStackTrace()
-                        // If enough artworks are not found in the 50 from the first page of the rankings,
-                        // keep looking through the next pages or days
-                        // We can continue to look through the 450 rankings for that day
-                        // There is a tenth page actually, but the next page number integer becomes a boolean
-                        // GSON can't handle this and throws a fit.
-                        // Thus I've limited my app to parsing only the top 450 rankings
-                        if (pageNumber != 9) {
-                            pageNumber++
-                            call = service.getRankingJson(updateMode, pageNumber, date)
-                            contents = call.execute().body()
-                        } else {
+                val service = RestClient.getRankingService(networkPath)
+                RankingPageFetcher(service, updateMode!!, getRankingFilter()::acceptsFields).use { fetcher ->
+                    // The pages expected to be needed are all requested at once, rather than one after another
+                    val pagesPerFetch = predictedPages.coerceIn(1, minOf(pageBudget, RankingPageFetcher.LAST_PAGE))
+                    var rankingPages = fetcher.fetch(null, 1..pagesPerFetch)
+                    if (BuildConfig.DEBUG) {
+                        writeToFileRanking(rankingPages.first)
+                    }
+                    pagesFetched = rankingPages.pageCount
+                    while (pendingArtworkList.size < numToReach) {
+                        try {
+                            pendingArtworkList.add(getArtworkRanking(rankingPages))
+                        } catch (e: FilterMatchNotFoundException) {
+                            if (pagesFetched >= pageBudget) {
+                                Log.w(LOG_TAG, "Stopping after " + pagesFetched + " pages, found " + pendingArtworkList.size + " artworks")
+                                break
+                            }
+                            // If enough artworks are not found in the pages fetched so far,
+                            // keep looking through the next pages or days
+                            // We can continue to look through the 450 rankings for that day
                             // If we for some reason cannot find enough artwork to satisfy the filter
                             // from the top 450, then we can look at the previous day's ranking
-                            pageNumber = 1
-                            call = service.getRankingJson(updateMode, pageNumber, prevDate)
-                            contents = call.execute().body()
-                            date = contents!!.date
-                            prevDate = contents.prev_date
+                            val pagesLeft = pageBudget - pagesFetched
+                            rankingPages = if (rankingPages.lastPage < RankingPageFetcher.LAST_PAGE) {
+                                val firstPage = rankingPages.lastPage + 1
+                                fetcher.fetch(rankingPages.date,
+                                        firstPage..minOf(RankingPageFetcher.LAST_PAGE, firstPage + minOf(pagesPerFetch, pagesLeft) - 1))
+                            } else {
+                                fetcher.fetch(rankingPages.prevDate, 1..minOf(pagesPerFetch, pagesLeft))
+                            }
+                            pagesFetched += rankingPages.pageCount
                         }
                     }
                 }
             }
-            Log.i(LOG_TAG, "Submitting " + sharedPrefs.getInt("prefSlider_numToDownload", 2) +
-                    " artworks")
-            return artworkArrayList
+            (rankingFilter ?: authFilter)?.let { filterStatistics.record(statisticsKey, it) }
+            Log.d(LOG_TAG, "Selected " + pendingArtworkList.size + " artworks in " + (System.currentTimeMillis() - selectionStartTime) + " milliseconds")
+            (rankingFilter ?: authFilter)?.let { Log.d(LOG_TAG, "Filter rejections: " + it.rejectionSummary()) }
+            Log.d(LOG_TAG, RestClient.getCacheStatistics())
+            Log.d(LOG_TAG, RubySSLSocketFactory.getStatistics())
+            return downloadArtworks(pendingArtworkList, networkPath)
         }
 
     override fun doWork(): Result {
@@ -970,12 +1084,24 @@ class PixivArtWorker(
             e.printStackTrace()
             return Result.retry()
         }
+
+        // Muzei gets what it is waiting on, and everything else goes into the prefetch buffer
+        // Whatever does not fit into the buffer is submitted anyway rather than wasted
+        val numToSubmit = if (clearArtwork || submitRequested) {
+            PreferenceManager.getDefaultSharedPreferences(applicationContext).getInt("prefSlider_numToDownload", 2)
+        } else 0
+        val splitIndex = numToSubmit.coerceAtMost(artworkArrayList!!.size)
+        val submittedArtworks = artworkArrayList.subList(0, splitIndex) +
+                prefetchBuffer.offer(artworkArrayList.subList(splitIndex, artworkArrayList.size))
+        submitRequested = false
+        Log.i(LOG_TAG, "Submitting " + submittedArtworks.size + " artworks, prefetched " + (artworkArrayList.size - submittedArtworks.size))
         if (clearArtwork) {
             clearArtwork = false
-            client.setArtwork(artworkArrayList!!)
-        } else {
-            client.addArtwork(artworkArrayList!!)
+            client.setArtwork(submittedArtworks)
+        } else if (submittedArtworks.isNotEmpty()) {
+            client.addArtwork(submittedArtworks)
         }
+        imageStore.collectGarbage(client.contentUri, prefetchBuffer.referencedPaths())
         Log.d(LOG_TAG, "Work completed")
         return Result.success()
     }
@@ -0,0 +1,142 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.provider
+
+import android.content.Context
+import android.net.Uri
+import android.util.Log
+import androidx.core.net.toUri
+import androidx.preference.PreferenceManager
+import com.antony.muzei.pixiv.provider.PixivArtProviderDefines.PIXIV_ARTWORK_URL
+import com.google.android.apps.muzei.api.provider.Artwork
+import org.json.JSONArray
+import org.json.JSONException
+import org.json.JSONObject
+import java.io.File
+
+/**
+ * Artworks that have already been downloaded and verified, but have not yet been submitted to Muzei
+ *
+ * When Muzei asks for a new artwork, one is handed over from here straight away instead of waiting on
+ * the network, and the worker then tops the buffer back up in the background
+ * Holds up to prefSlider_prefetchBufferSize artworks; a size of zero turns the buffer off
+ */
+class PrefetchBuffer(context: Context) {
+
+    companion object {
+        private const val LOG_TAG = "ANTONY_PREFETCH"
+        private const val PREFERENCE_FILE_NAME = "prefetch_buffer"
+        private const val KEY_ARTWORKS = "artworks"
+
+        // The provider hands artworks out on a binder thread while the worker fills the buffer
+        private val lock = Any()
+    }
+
+    private val context = context.applicationContext
+
+    private val sharedPrefs = this.context.getSharedPreferences(PREFERENCE_FILE_NAME, Context.MODE_PRIVATE)
+
+    val capacity: Int
+        get() = PreferenceManager.getDefaultSharedPreferences(context).getInt("prefSlider_prefetchBufferSize", 2)
+
+    /**
+     * Number of artworks needed to fill the buffer back up
+     */
+    fun deficit(): Int = (capacity - read().size).coerceAtLeast(0)
+
+    /**
+     * Removes and returns the oldest buffered artwork
+     * Artworks whose image has since been deleted are skipped over
+     * Returns null if there is nothing to hand over
+     */
+    fun take(): Artwork? = synchronized(lock) {
+        val artworks = read()
+        var taken: Artwork? = null
+        while (taken == null && artworks.isNotEmpty()) {
+            val candidate = artworks.removeAt(0)
+            if (candidate.persistentUri?.path?.let { File(it).exists() } == true) {
+                taken = candidate
+            }
+        }
+        write(artworks)
+        taken
+    }
+
+    /**
+     * Adds freshly downloaded artworks to the buffer, and returns those that did not fit
+     */
+    fun offer(newArtworks: List<Artwork>): List<Artwork> = synchronized(lock) {
+        val artworks = read()
+        val room = (capacity - artworks.size).coerceIn(0, newArtworks.size)
+        artworks.addAll(newArtworks.subList(0, room))
+        write(artworks)
+        newArtworks.subList(room, newArtworks.size)
+    }
+
+    // Tokens of buffered artworks, so they are not selected a second time
+    fun tokens(): List<String> = read().mapNotNull { it.token }
+
+    // Paths of buffered images, which the image store must not garbage collect
+    fun referencedPaths(): Set<String> = read().mapNotNull { it.persistentUri?.path }.toHashSet()
+
+    /**
+     * Empties the buffer, for when the update mode has changed or the cache was cleared
+     */
+    fun clear() {
+        synchronized(lock) {
+            sharedPrefs.edit().remove(KEY_ARTWORKS).apply()
+        }
+    }
+
+    private fun read(): MutableList<Artwork> {
+        val json = sharedPrefs.getString(KEY_ARTWORKS, null) ?: return ArrayList()
+        return try {
+            val jsonArray = JSONArray(json)
+            (0 until jsonArray.length()).mapTo(ArrayList()) { fromJson(jsonArray.getJSONObject(it)) }
+        } catch (e: JSONException) {
+            Log.e(LOG_TAG, "Discarding unreadable prefetch buffer", e)
+            ArrayList()
+        }
+    }
+
+    private fun write(artworks: List<Artwork>) {
+        val jsonArray = JSONArray()
+        artworks.forEach { jsonArray.put(toJson(it)) }
+        sharedPrefs.edit().putString(KEY_ARTWORKS, jsonArray.toString()).apply()
+    }
+
+    private fun toJson(artwork: Artwork): JSONObject = JSONObject().apply {
+        put("token", artwork.token)
+        put("title", artwork.title)
+        put("byline", artwork.byline)
+        put("attribution", artwork.attribution ?: JSONObject.NULL)
+        put("persistentUri", artwork.persistentUri.toString())
+    }
+
+    private fun fromJson(json: JSONObject): Artwork {
+        val token = json.getString("token")
+        return Artwork.Builder()
+                .title(json.getString("title"))
+                .byline(json.getString("byline"))
+                .attribution(if (json.isNull("attribution")) null else json.getString("attribution"))
+                .persistentUri(Uri.parse(json.getString("persistentUri")))
+                .token(token)
+                .webUri((PIXIV_ARTWORK_URL + token).toUri())
+                .build()
+    }
+}
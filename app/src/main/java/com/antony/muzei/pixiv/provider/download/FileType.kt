@@ -15,26 +15,8 @@
  *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
  */
 
-package com.antony.muzei.pixiv.provider.network.moshi;
-
-import com.squareup.moshi.Json;
-
-import java.util.List;
-
-public class Illusts {
-
-    @Json(name = "illusts")
-    private List<AuthArtwork> artworks;
-
-    @Json(name = "next_url")
-    private String nextUrl;
-
-    public List<AuthArtwork> getArtworks() {
-        return artworks;
-    }
-
-    public String getNextUrl() {
-        return nextUrl;
-    }
+package com.antony.muzei.pixiv.provider.download
 
+enum class FileType {
+    OTHER, JPEG, PNG
 }
@@ -0,0 +1,114 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.provider.download
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.os.SystemClock
+import android.util.Log
+import java.io.File
+import java.io.FileOutputStream
+import kotlin.math.roundToInt
+
+/**
+ * Scales a downloaded image down to wallpaper resolution, so that neither Muzei nor anything else reading the
+ * stored image has to decode it at its full size
+ *
+ * The image is scaled down to just cover a [targetWidth] by [targetHeight] screen, the same way Muzei fits
+ * a wallpaper to the screen. Decode memory is kept bounded by first decoding with the largest inSampleSize
+ * that still covers the target, so a 6000x9000 original is never held in memory at full size, and only then
+ * scaling the much smaller sampled bitmap to the exact size
+ */
+class ImageDownsampler(private val targetWidth: Int, private val targetHeight: Int) {
+
+    companion object {
+        private const val LOG_TAG = "ANTONY_DOWNSAMPLE"
+        private const val JPEG_QUALITY = 90
+
+        // Used when pref_imageVariant is set to always download the original
+        private const val DEFAULT_OVERSAMPLING = 1.5f
+
+        /**
+         * Targets the screen at the oversampling factor chosen in pref_imageVariant
+         */
+        fun fromContext(context: Context): ImageDownsampler {
+            val screen = ImageVariantSelector.portraitScreenSize(context)
+            val oversampling = ImageVariantSelector.oversamplingFrom(context) ?: DEFAULT_OVERSAMPLING
+            return ImageDownsampler((screen.x * oversampling).roundToInt(), (screen.y * oversampling).roundToInt())
+        }
+    }
+
+    /**
+     * Writes a copy of [source] scaled down to cover the target size into [destination]
+     * Returns false, without touching [source], if it is already small enough, could not be decoded,
+     * or the scaled down copy would not actually be any smaller on disk
+     */
+    fun downsample(source: File, destination: File): Boolean {
+        val bounds = BitmapFactory.Options().apply { inJustDecodeBounds = true }
+        BitmapFactory.decodeFile(source.path, bounds)
+        val width = bounds.outWidth
+        val height = bounds.outHeight
+        if (width <= 0 || height <= 0) {
+            Log.w(LOG_TAG, "Unable to read the size of " + source.name)
+            return false
+        }
+
+        val scale = maxOf(targetWidth.toFloat() / width, targetHeight.toFloat() / height)
+        if (scale >= 1f) {
+            return false
+        }
+        val scaledWidth = maxOf(1, (width * scale).roundToInt())
+        val scaledHeight = maxOf(1, (height * scale).roundToInt())
+
+        val startTime = SystemClock.elapsedRealtime()
+        // inSampleSize is only honoured as a power of two
+        var sampleSize = 1
+        while (width / (sampleSize * 2) >= scaledWidth && height / (sampleSize * 2) >= scaledHeight) {
+            sampleSize *= 2
+        }
+        val sampled = BitmapFactory.decodeFile(source.path, BitmapFactory.Options().apply { inSampleSize = sampleSize })
+        if (sampled == null) {
+            Log.w(LOG_TAG, "Unable to decode " + source.name)
+            return false
+        }
+        val scaled = if (sampled.width == scaledWidth && sampled.height == scaledHeight) {
+            sampled
+        } else {
+            Bitmap.createScaledBitmap(sampled, scaledWidth, scaledHeight, true).also { sampled.recycle() }
+        }
+
+        // Only transparent images need PNG, pixiv's JPEGs and opaque PNGs alike are far smaller as JPEG
+        val format = if (scaled.hasAlpha()) Bitmap.CompressFormat.PNG else Bitmap.CompressFormat.JPEG
+        val compressed = try {
+            FileOutputStream(destination).use { scaled.compress(format, JPEG_QUALITY, it) }
+        } finally {
+            scaled.recycle()
+        }
+        if (!compressed || destination.length() >= source.length()) {
+            destination.delete()
+            return false
+        }
+
+        Log.d(LOG_TAG, "Downsampled " + source.name + " from " + width + "x" + height + " to " +
+                scaledWidth + "x" + scaledHeight + " (sample size " + sampleSize + ") in " +
+                (SystemClock.elapsedRealtime() - startTime) + " milliseconds, " +
+                source.length() + " to " + destination.length() + " bytes")
+        return true
+    }
+}
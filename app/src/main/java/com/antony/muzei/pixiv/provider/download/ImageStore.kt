@@ -0,0 +1,174 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.provider.download
+
+import android.content.Context
+import android.net.Uri
+import android.os.Environment
+import android.util.Log
+import com.google.android.apps.muzei.api.provider.ProviderContract
+import okio.HashingSource
+import okio.blackholeSink
+import okio.buffer
+import okio.source
+import java.io.File
+import java.io.IOException
+
+/**
+ * Content addressed store for downloaded images, shared by every update mode
+ *
+ * Each image is stored once as a blob named after the SHA-256 of its contents, e.g.
+ *  Pictures/store/3a7bd3e2360a3d29eea436fcfb7e44c735d117c42d1c1835420b6b9942dd4f1b.png
+ * An index maps the illust id and page of an original image, e.g. 79583564_p0, to the blob holding it,
+ * so that an artwork which is already on disk can be handed to Muzei without going to the network
+ *
+ * The reference count of a blob is the number of provider rows whose persistent uri points to it.
+ * Blobs that are no longer referenced are kept around, up to [MAX_UNREFERENCED_BYTES], so that switching
+ * back and forth between update modes can reuse them
+ */
+class ImageStore(context: Context) {
+
+    companion object {
+        private const val LOG_TAG = "ANTONY_STORE"
+        private const val STORE_DIRECTORY = "store"
+        private const val INDEX_FILE_NAME = "image_store_index"
+        private const val BLOB_EXTENSION = ".png"
+
+        // Unreferenced blobs beyond this are deleted, least recently used first
+        private const val MAX_UNREFERENCED_BYTES = 128L * 1024 * 1024
+
+        // Originals kept aside when their image was downsampled on ingest are stored under their key plus this
+        // They are never referenced by the provider, so they are evicted like any other unreferenced blob
+        const val ORIGINAL_KEY_SUFFIX = "_original"
+
+        /*
+            Each rendition of a page gets its own key, so that an image of one size is never handed out for another
+                https://i.pximg.net/img-original/img/2020/02/19/00/00/39/79583564_p0.png -> 79583564_p0
+                https://i.pximg.net/img-master/img/2020/02/19/00/00/39/79583564_p0_master1200.jpg -> 79583564_p0_master1200
+                https://i.pximg.net/c/600x1200_90/img-master/img/2020/02/19/00/00/39/79583564_p0_master1200.jpg
+                    -> 79583564_p0_master1200_600x1200_90
+         */
+        fun keyOf(imageUrl: String): String {
+            val name = imageUrl.substringAfterLast('/').substringBefore('.')
+            val crop = imageUrl.substringAfter("/c/", "").substringBefore('/')
+            return if (crop.isEmpty()) name else name + "_" + crop
+        }
+    }
+
+    private val context = context.applicationContext
+
+    private val directory = File(this.context.getExternalFilesDir(Environment.DIRECTORY_PICTURES), STORE_DIRECTORY)
+
+    private val index = this.context.getSharedPreferences(INDEX_FILE_NAME, Context.MODE_PRIVATE)
+
+    /**
+     * Returns the blob already holding the image with this key, or null if it has to be downloaded
+     */
+    fun lookup(key: String): File? {
+        val hash = index.getString(key, null) ?: return null
+        val blob = File(directory, hash + BLOB_EXTENSION)
+        if (!blob.exists()) {
+            index.edit().remove(key).apply()
+            return null
+        }
+        // Last modified time doubles as the last used time when evicting
+        blob.setLastModified(System.currentTimeMillis())
+        return blob
+    }
+
+    /**
+     * Moves a completely downloaded image into the store under this key, and returns the blob now holding it
+     * If an identical image is already stored, the downloaded file is simply discarded
+     */
+    @Throws(IOException::class)
+    fun commit(key: String, file: File): File {
+        if (!directory.exists()) {
+            directory.mkdirs()
+        }
+        val hash = hashOf(file)
+        val blob = File(directory, hash + BLOB_EXTENSION)
+        if (blob.exists()) {
+            file.delete()
+            blob.setLastModified(System.currentTimeMillis())
+        } else if (!file.renameTo(blob)) {
+            throw IOException("Unable to move " + file.name + " into the store")
+        }
+        index.edit().putString(key, hash).apply()
+        return blob
+    }
+
+    /**
+     * Deletes unreferenced blobs, least recently used first, until they fit in [MAX_UNREFERENCED_BYTES]
+     * Referenced blobs are never deleted, nor are blobs at [otherReferencedPaths] held outside the provider
+     */
+    fun collectGarbage(providerContentUri: Uri, otherReferencedPaths: Set<String> = emptySet()) {
+        val blobs = directory.listFiles() ?: return
+        val referenceCounts = countReferences(providerContentUri) ?: return
+
+        var unreferencedBytes = 0L
+        val deletedHashes = HashSet<String>()
+        blobs.filter { (referenceCounts[it.path] ?: 0) == 0 && it.path !in otherReferencedPaths }
+                .sortedByDescending { it.lastModified() }
+                .forEach { blob ->
+                    unreferencedBytes += blob.length()
+                    if (unreferencedBytes > MAX_UNREFERENCED_BYTES && blob.delete()) {
+                        deletedHashes.add(blob.name.removeSuffix(BLOB_EXTENSION))
+                    }
+                }
+        if (deletedHashes.isEmpty()) {
+            return
+        }
+        Log.d(LOG_TAG, "Deleted " + deletedHashes.size + " unreferenced blobs")
+        index.edit().apply {
+            for ((key, hash) in index.all) {
+                if (hash in deletedHashes) {
+                    remove(key)
+                }
+            }
+        }.apply()
+    }
+
+    /**
+     * Deletes every blob, regardless of whether it is still referenced
+     */
+    fun clear() {
+        directory.listFiles()?.forEach { it.delete() }
+        index.edit().clear().apply()
+    }
+
+    // Maps the path of each blob to the number of provider rows referencing it
+    // Returns null if the provider could not be queried, in which case nothing may be safely deleted
+    private fun countReferences(providerContentUri: Uri): Map<String, Int>? {
+        val cursor = context.contentResolver.query(providerContentUri,
+                arrayOf(ProviderContract.Artwork.PERSISTENT_URI), null, null, null) ?: return null
+        val referenceCounts = HashMap<String, Int>()
+        cursor.use {
+            while (it.moveToNext()) {
+                val path = it.getString(0)?.let { uri -> Uri.parse(uri).path } ?: continue
+                referenceCounts[path] = (referenceCounts[path] ?: 0) + 1
+            }
+        }
+        return referenceCounts
+    }
+
+    private fun hashOf(file: File): String =
+            HashingSource.sha256(file.source()).use { hashingSource ->
+                hashingSource.buffer().readAll(blackholeSink())
+                hashingSource.hash.hex()
+            }
+}
@@ -0,0 +1,101 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.provider.download
+
+import android.content.Context
+import android.graphics.Point
+import android.util.DisplayMetrics
+import android.view.WindowManager
+import androidx.preference.PreferenceManager
+
+/**
+ * Picks which of pixiv's renditions of an artwork to download: the smallest one that still covers the screen
+ * at the oversampling factor chosen in pref_imageVariant, or always the original
+ *
+ * Muzei scales a wallpaper to cover the whole screen, so an artwork needs to be at least
+ *  max(screen width / artwork width, screen height / artwork height)
+ * times its own size, and a rendition is good enough if it is scaled down by less than that
+ * The screen is taken in portrait, as that is how wallpapers are mostly seen
+ */
+class ImageVariantSelector(
+        private val screenWidth: Int,
+        private val screenHeight: Int,
+        // Null for always the original
+        private val oversampling: Float?
+) {
+
+    /**
+     * pixiv's renditions, smallest first
+     * The master renditions are always JPEGs, scaled down to fit within their box but never scaled up
+     */
+    enum class Variant(private val boxWidth: Int, private val boxHeight: Int, private val pathPrefix: String) {
+        LARGE(600, 1200, "/c/600x1200_90/img-master"),
+        REGULAR(1200, 1200, "/img-master"),
+        ORIGINAL(Int.MAX_VALUE, Int.MAX_VALUE, "/img-original");
+
+        // How much this rendition is scaled down from the original, 1 if it is not
+        fun scale(width: Int, height: Int): Float =
+                minOf(1f, boxWidth.toFloat() / width, boxHeight.toFloat() / height)
+
+        /*
+            Builds the URL of this master rendition from the URL of any other rendition of the same page
+                https://i.pximg.net/img-original/img/2020/02/19/00/00/39/79583564_p0.png
+                https://tc-pximg01.techorus-cdn.com/c/240x480/img-master/img/2020/02/19/00/00/39/79583564_p0_master1200.jpg
+            both become, for REGULAR
+                https://i.pximg.net/img-master/img/2020/02/19/00/00/39/79583564_p0_master1200.jpg
+         */
+        fun urlFrom(url: String): String {
+            check(this != ORIGINAL) { "Original URLs need their file extension probed" }
+            val path = url.substring(url.indexOf("/img/"))
+            val name = path.substring(0, path.lastIndexOf('.')).removeSuffix("_master1200")
+            return "https://i.pximg.net" + pathPrefix + name + "_master1200.jpg"
+        }
+    }
+
+    companion object {
+        fun fromContext(context: Context): ImageVariantSelector {
+            val screen = portraitScreenSize(context)
+            return ImageVariantSelector(screen.x, screen.y, oversamplingFrom(context))
+        }
+
+        // The real size of the screen in portrait, i.e. the short side by the long side
+        fun portraitScreenSize(context: Context): Point {
+            val metrics = DisplayMetrics()
+            @Suppress("DEPRECATION")
+            (context.getSystemService(Context.WINDOW_SERVICE) as WindowManager).defaultDisplay.getRealMetrics(metrics)
+            return Point(minOf(metrics.widthPixels, metrics.heightPixels), maxOf(metrics.widthPixels, metrics.heightPixels))
+        }
+
+        // The oversampling factor chosen in pref_imageVariant, or null for always the original
+        fun oversamplingFrom(context: Context): Float? =
+                PreferenceManager.getDefaultSharedPreferences(context)
+                        .getString("pref_imageVariant", "1.5")
+                        ?.toFloatOrNull()
+    }
+
+    /**
+     * Returns the smallest rendition covering the screen, or the original if the artwork's size is not known
+     */
+    fun select(width: Int, height: Int): Variant {
+        if (oversampling == null || width <= 0 || height <= 0) {
+            return Variant.ORIGINAL
+        }
+        val needed = minOf(1f, maxOf(screenWidth.toFloat() / width, screenHeight.toFloat() / height) * oversampling)
+        return Variant.values().first { it.scale(width, height) >= needed }
+    }
+}
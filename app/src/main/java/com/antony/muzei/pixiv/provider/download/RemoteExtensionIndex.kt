@@ -0,0 +1,112 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.provider.download
+
+import android.content.Context
+import android.content.SharedPreferences
+
+/**
+ * Remembers which file extension the original image of a ranking artwork was found under,
+ * so that retries and re-downloads of the same artwork never probe i.pximg.net again
+ *
+ * Entries are keyed by the date path and file name of the original image, e.g.
+ *  2020/02/19/00/00/39/79583564_p0
+ * which identifies both the illust id and the page
+ * Each value is the order the entry was put in followed by the extension, e.g. 1234:.png, so that once
+ * the index is full the oldest entries can be let go of
+ */
+class RemoteExtensionIndex(context: Context) {
+
+    companion object {
+        private const val PREFERENCE_FILE_NAME = "remote_extension_index"
+
+        // Each entry is tiny, but there is no reason to keep these around forever
+        private const val MAX_ENTRIES = 2000
+
+        // Evicting reads the whole index, so it is done for this many entries at a time
+        private const val EVICTION_BATCH = 200
+    }
+
+    private val sharedPrefs = context.applicationContext
+            .getSharedPreferences(PREFERENCE_FILE_NAME, Context.MODE_PRIVATE)
+
+    // Counted once from the file, then kept up to date, so that a put does not read the whole index
+    private var entryCount = -1
+    private var nextSequence = 0L
+
+    /**
+     * Returns the extension (including the leading dot) previously recorded for this original image url,
+     * or null if it has not yet been probed
+     */
+    fun get(urlNoExtension: String): String? = sharedPrefs.getString(keyOf(urlNoExtension), null)?.let { extensionOf(it) }
+
+    @Synchronized
+    fun put(urlNoExtension: String, extension: String) {
+        loadCounters()
+        val key = keyOf(urlNoExtension)
+        sharedPrefs.edit().apply {
+            if (!sharedPrefs.contains(key)) {
+                if (entryCount >= MAX_ENTRIES) {
+                    evictOldest(this)
+                }
+                entryCount++
+            }
+            putString(key, "$nextSequence:$extension")
+        }.apply()
+        nextSequence++
+    }
+
+    @Synchronized
+    fun remove(urlNoExtension: String) {
+        val key = keyOf(urlNoExtension)
+        if (!sharedPrefs.contains(key)) {
+            return
+        }
+        sharedPrefs.edit().remove(key).apply()
+        if (entryCount > 0) {
+            entryCount--
+        }
+    }
+
+    private fun loadCounters() {
+        if (entryCount >= 0) {
+            return
+        }
+        val entries = sharedPrefs.all
+        entryCount = entries.size
+        nextSequence = (entries.values.maxOfOrNull { sequenceOf(it) } ?: -1L) + 1
+    }
+
+    private fun evictOldest(editor: SharedPreferences.Editor) {
+        val oldest = sharedPrefs.all.entries
+                .sortedBy { sequenceOf(it.value) }
+                .take(EVICTION_BATCH)
+        oldest.forEach { editor.remove(it.key) }
+        entryCount -= oldest.size
+    }
+
+    // Entries written before sequences were kept hold just the extension, and count as the oldest
+    private fun sequenceOf(value: Any?): Long =
+            (value as? String)?.substringBefore(':', "")?.toLongOrNull() ?: -1L
+
+    private fun extensionOf(value: String): String = value.substringAfter(':')
+
+    // https://i.pximg.net/img-original/img/2020/02/19/00/00/39/79583564_p0 -> 2020/02/19/00/00/39/79583564_p0
+    private fun keyOf(urlNoExtension: String): String =
+            urlNoExtension.substring(urlNoExtension.indexOf("/img/") + "/img/".length)
+}
@@ -0,0 +1,71 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.provider.download
+
+import okio.Buffer
+import okio.Sink
+import okio.Timeout
+import java.io.IOException
+
+/**
+ * [Sink] that writes every byte to both [primary] and [secondary], so that a single network read
+ * can fill two files at once
+ *
+ * okio shares segments when copying between buffers, so the copy for [secondary] does not
+ * duplicate the image data
+ * The secondary copy is a nice to have: once writing to it fails, it is given up on and kept in
+ * [secondaryFailure], while the primary copy carries on as if it were the only one
+ */
+class TeeSink(private val primary: Sink, private val secondary: Sink) : Sink {
+
+    var secondaryFailure: IOException? = null
+        private set
+
+    override fun write(source: Buffer, byteCount: Long) {
+        if (secondaryFailure == null) {
+            val copy = Buffer()
+            source.copyTo(copy, 0, byteCount)
+            trySecondary { secondary.write(copy, byteCount) }
+        }
+        primary.write(source, byteCount)
+    }
+
+    override fun flush() {
+        if (secondaryFailure == null) {
+            trySecondary { secondary.flush() }
+        }
+        primary.flush()
+    }
+
+    override fun timeout(): Timeout = primary.timeout()
+
+    override fun close() {
+        trySecondary { secondary.close() }
+        primary.close()
+    }
+
+    private inline fun trySecondary(block: () -> Unit) {
+        try {
+            block()
+        } catch (e: IOException) {
+            if (secondaryFailure == null) {
+                secondaryFailure = e
+            }
+        }
+    }
+}
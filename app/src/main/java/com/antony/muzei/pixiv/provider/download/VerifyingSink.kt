@@ -0,0 +1,145 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.provider.download
+
+import com.antony.muzei.pixiv.provider.exceptions.CorruptFileException
+import okio.Buffer
+import okio.ForwardingSink
+import okio.Sink
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+
+/**
+ * [Sink] that checks a downloaded image is complete while its bytes stream through to disk,
+ * instead of reopening the finished file afterwards
+ *
+ * The magic bytes at the start of the stream identify the image type, and a small rolling window
+ * keeps the last bytes seen, so that the file closer can be checked once the download has ended
+ *  PNG must end with an IEND chunk
+ *  JPEG must end with an EOI marker
+ * If the server sent a Content-Length, the number of bytes received must match it as well
+ * Interrupted downloads can be continued with [resumeFrom]
+ *
+ * @param expectedLength the Content-Length of the response, or -1 if unknown
+ */
+class VerifyingSink(delegate: Sink, private val expectedLength: Long) : ForwardingSink(delegate) {
+
+    companion object {
+        private val PNG_MAGIC = byteArrayOf(0x89.toByte(), 0x50, 0x4E, 0x47)
+        private val JPEG_MAGIC = byteArrayOf(0xFF.toByte(), 0xD8.toByte())
+
+        // "IEND" followed by the CRC of the (always empty) IEND chunk
+        private val PNG_CLOSER = byteArrayOf(0x49, 0x45, 0x4E, 0x44, 0xAE.toByte(), 0x42, 0x60, 0x82.toByte())
+        private val JPEG_CLOSER = byteArrayOf(0xFF.toByte(), 0xD9.toByte())
+
+        private const val HEAD_SIZE = 4
+        private const val TAIL_SIZE = 8
+    }
+
+    private val head = ByteArray(HEAD_SIZE)
+
+    // Ring buffer of the last TAIL_SIZE bytes written, tailPosition is where the next byte goes
+    private val tail = ByteArray(TAIL_SIZE)
+    private var tailPosition = 0
+
+    var bytesWritten = 0L
+        private set
+
+    // Bytes already on disk from an interrupted download, which are not part of this response
+    private var resumedLength = 0L
+
+    /**
+     * Accounts for the bytes of an interrupted download that is being resumed
+     * Only the first and last few bytes of the partial file are read
+     * Must be called before anything is written
+     */
+    @Throws(IOException::class)
+    fun resumeFrom(partFile: File) {
+        check(bytesWritten == 0L) { "Already written to" }
+        RandomAccessFile(partFile, "r").use { file ->
+            val length = file.length()
+            file.readFully(head, 0, minOf(HEAD_SIZE.toLong(), length).toInt())
+            val tailLength = minOf(TAIL_SIZE.toLong(), length).toInt()
+            file.seek(length - tailLength)
+            file.readFully(tail, 0, tailLength)
+            tailPosition = tailLength % TAIL_SIZE
+            bytesWritten = length
+            resumedLength = length
+        }
+    }
+
+    override fun write(source: Buffer, byteCount: Long) {
+        // Bytes must be inspected before being passed on, as the delegate consumes them from source
+        var i = 0L
+        while (bytesWritten + i < HEAD_SIZE && i < byteCount) {
+            head[(bytesWritten + i).toInt()] = source[i]
+            i++
+        }
+        for (position in maxOf(0L, byteCount - TAIL_SIZE) until byteCount) {
+            tail[tailPosition] = source[position]
+            tailPosition = (tailPosition + 1) % TAIL_SIZE
+        }
+
+        super.write(source, byteCount)
+        bytesWritten += byteCount
+    }
+
+    /**
+     * To be called once every byte has been written
+     *
+     * @return the type of the image, going off its magic bytes
+     * @throws CorruptFileException if the image is shorter than advertised or is missing its file closer
+     */
+    @Throws(CorruptFileException::class)
+    fun verify(): FileType {
+        val bytesReceived = bytesWritten - resumedLength
+        if (expectedLength >= 0 && bytesReceived != expectedLength) {
+            throw CorruptFileException("Expected $expectedLength bytes, only received $bytesReceived")
+        }
+        return when {
+            headMatches(PNG_MAGIC) -> {
+                if (!tailMatches(PNG_CLOSER)) {
+                    throw CorruptFileException("Corrupt PNG")
+                }
+                FileType.PNG
+            }
+            headMatches(JPEG_MAGIC) -> {
+                if (!tailMatches(JPEG_CLOSER)) {
+                    throw CorruptFileException("Corrupt JPG")
+                }
+                FileType.JPEG
+            }
+            else -> FileType.OTHER
+        }
+    }
+
+    private fun headMatches(magic: ByteArray): Boolean {
+        if (bytesWritten < magic.size) {
+            return false
+        }
+        return magic.indices.all { head[it] == magic[it] }
+    }
+
+    private fun tailMatches(closer: ByteArray): Boolean {
+        if (bytesWritten < closer.size) {
+            return false
+        }
+        return closer.indices.all { tail[(tailPosition - closer.size + it + TAIL_SIZE) % TAIL_SIZE] == closer[it] }
+    }
+}
@@ -1,3 +0,0 @@
-package com.antony.muzei.pixiv.provider.exceptions
-
-class LoopFilterMatchNotFoundException(message: String?) : Exception(message)
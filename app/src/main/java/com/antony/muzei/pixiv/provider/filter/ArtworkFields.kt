@@ -0,0 +1,113 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.provider.filter
+
+import com.antony.muzei.pixiv.provider.network.moshi.AuthArtwork
+import com.antony.muzei.pixiv.provider.network.moshi.RankingArtwork
+
+/**
+ * Reads the fields that filtering needs out of one kind of artwork, so that ranking and auth
+ * artworks can share the one [ArtworkFilter]
+ */
+interface ArtworkFields<T> {
+    fun id(artwork: T): Int
+    fun isManga(artwork: T): Boolean
+    fun width(artwork: T): Int
+    fun height(artwork: T): Int
+    fun views(artwork: T): Int
+
+    /**
+     * Returns the rule matching the artwork's NSFW level against those selected by the user,
+     * or null if every level is selected
+     */
+    fun contentLevelRule(settings: FilterSettings, isRecommended: Boolean): FilterRule<T>?
+}
+
+/*
+    NSFW filtering is performed by checking the value of the "sexual" JSON string
+    Manga filtering is performed by checking the value of the "illust_type" JSON string
+ */
+object RankingArtworkFields : ArtworkFields<RankingArtwork> {
+    override fun id(artwork: RankingArtwork): Int = artwork.illust_id
+    override fun isManga(artwork: RankingArtwork): Boolean = artwork.illust_type == 1
+    override fun width(artwork: RankingArtwork): Int = artwork.width
+    override fun height(artwork: RankingArtwork): Int = artwork.height
+    override fun views(artwork: RankingArtwork): Int = artwork.view_count
+
+    override fun contentLevelRule(settings: FilterSettings, isRecommended: Boolean): FilterRule<RankingArtwork>? {
+        if (settings.rankingFilterLevels.size == 2) {
+            return null
+        }
+        val levels = settings.rankingFilterLevels.map { it.toInt() }.toIntArray()
+        return object : FilterRule<RankingArtwork>("nsfw") {
+            override fun accepts(artwork: RankingArtwork): Boolean {
+                val sexual = artwork.illust_content_type.sexual
+                for (level in levels) {
+                    if (level == sexual) {
+                        return true
+                    }
+                }
+                return false
+            }
+        }
+    }
+}
+
+/*
+    For NSFW filtering the two relevant JSON strings are "sanity_level" and "x_restrict"
+        sanity_level
+            2 -> Completely SFW
+            4 -> Moderately ecchi e.g. beach bikinis, slight upskirts
+            6 -> Very ecchi e.g. more explicit and suggestive themes
+         x_restrict
+            1 -> R18 e.g. nudity and penetration
+
+        In this code x_restrict is treated as a level 8 sanity_level
+
+    For manga filtering, the value of the "type" string is checked for either "manga" or "illust"
+ */
+object AuthArtworkFields : ArtworkFields<AuthArtwork> {
+    override fun id(artwork: AuthArtwork): Int = artwork.id
+    override fun isManga(artwork: AuthArtwork): Boolean = artwork.type == "manga"
+    override fun width(artwork: AuthArtwork): Int = artwork.width
+    override fun height(artwork: AuthArtwork): Int = artwork.height
+    override fun views(artwork: AuthArtwork): Int = artwork.total_view
+
+    override fun contentLevelRule(settings: FilterSettings, isRecommended: Boolean): FilterRule<AuthArtwork>? {
+        // All artworks in recommended are SFW, we can skip this check
+        if (isRecommended || settings.authFilterLevels.size == 4) {
+            return null
+        }
+        val sanityLevels = settings.authFilterLevels.mapNotNull { it.toIntOrNull() }.toIntArray()
+        val allowXRestrict = settings.authFilterLevels.contains("8")
+        return object : FilterRule<AuthArtwork>("nsfw") {
+            override fun accepts(artwork: AuthArtwork): Boolean {
+                if (allowXRestrict && artwork.x_restrict == 1) {
+                    return true
+                }
+                val sanityLevel = artwork.sanity_level
+                for (level in sanityLevels) {
+                    if (level == sanityLevel) {
+                        return true
+                    }
+                }
+                return false
+            }
+        }
+    }
+}
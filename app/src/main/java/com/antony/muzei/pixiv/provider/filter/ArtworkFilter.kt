@@ -0,0 +1,183 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.provider.filter
+
+import com.antony.muzei.pixiv.util.IntHashSet
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * The user's filtering preferences compiled into an ordered chain of rules
+ *
+ * Rules that a setting turns off are left out of the chain altogether, and the remaining rules run
+ * cheapest first, so that most rejections cost a field comparison or two
+ * Rejecting an artwork neither throws nor allocates; each rule instead counts its own rejections
+ *
+ * The first [fieldRuleCount] rules look only at the artwork's own fields, and are what pages are
+ * filtered with while they are being read, see [acceptsFields]
+ * Every candidate goes through [acceptsFields] exactly once, so its counts are the field rules' real hit rate
+ * Candidates that pass are then checked by [accepts], possibly several times as the worker picks artworks
+ * from the same page; only the first verdict on each is counted, giving the share that survives the
+ * duplicate and deleted checks as well
+ */
+class ArtworkFilter<T> private constructor(
+        private val fields: ArtworkFields<T>,
+        private val rules: List<FilterRule<T>>,
+        private val fieldRuleCount: Int
+) {
+
+    companion object {
+        /**
+         * Builds the filter for one run
+         * isDuplicate and isDeleted are both backed by in memory sets, but are still run after the
+         * plain field comparisons
+         */
+        fun <T> compile(fields: ArtworkFields<T>,
+                        settings: FilterSettings,
+                        isRecommended: Boolean,
+                        isDuplicate: IdPredicate,
+                        isDeleted: IdPredicate
+        ): ArtworkFilter<T> {
+            val rules = ArrayList<FilterRule<T>>()
+
+            if (!settings.showManga) {
+                rules.add(object : FilterRule<T>("manga") {
+                    override fun accepts(artwork: T): Boolean = !fields.isManga(artwork)
+                })
+            }
+
+            when (settings.aspectRatioSetting) {
+                1 -> rules.add(object : FilterRule<T>("aspect ratio") {
+                    override fun accepts(artwork: T): Boolean = fields.height(artwork) >= fields.width(artwork)
+                })
+                2 -> rules.add(object : FilterRule<T>("aspect ratio") {
+                    override fun accepts(artwork: T): Boolean = fields.height(artwork) <= fields.width(artwork)
+                })
+            }
+
+            // Slider values are in tens of pixels
+            // Landscape only cares about the height, and portrait only about the width
+            val minimumWidth = if (settings.aspectRatioSetting == 1) 0 else settings.minimumWidth * 10
+            val minimumHeight = if (settings.aspectRatioSetting == 2) 0 else settings.minimumHeight * 10
+            if (settings.aspectRatioSetting in 0..2 && (minimumWidth > 0 || minimumHeight > 0)) {
+                rules.add(object : FilterRule<T>("pixel size") {
+                    override fun accepts(artwork: T): Boolean =
+                            fields.width(artwork) >= minimumWidth && fields.height(artwork) >= minimumHeight
+                })
+            }
+
+            // Scalar must match with scalar in SettingsActivity
+            val minimumViews = settings.minimumViews * 500
+            if (minimumViews > 0) {
+                rules.add(object : FilterRule<T>("views") {
+                    override fun accepts(artwork: T): Boolean = fields.views(artwork) >= minimumViews
+                })
+            }
+
+            fields.contentLevelRule(settings, isRecommended)?.let { rules.add(it) }
+            val fieldRuleCount = rules.size
+
+            rules.add(object : FilterRule<T>("duplicate") {
+                override fun accepts(artwork: T): Boolean = !isDuplicate.test(fields.id(artwork))
+            })
+            rules.add(object : FilterRule<T>("deleted") {
+                override fun accepts(artwork: T): Boolean = !isDeleted.test(fields.id(artwork))
+            })
+
+            return ArtworkFilter(fields, rules, fieldRuleCount)
+        }
+    }
+
+    private val examined = AtomicInteger()
+    private val fieldsAccepted = AtomicInteger()
+
+    /**
+     * Number of candidates checked by [acceptsFields]
+     */
+    val examinedCount: Int
+        get() = examined.get()
+
+    /**
+     * Number of candidates that passed [acceptsFields]
+     */
+    val acceptedCount: Int
+        get() = fieldsAccepted.get()
+
+    // Ids given a verdict by accepts(), which is only ever called from the worker's own thread
+    private val checkedIds = IntHashSet()
+    private var finallyAccepted = 0
+
+    /**
+     * Number of distinct candidates checked by [accepts]
+     */
+    val checkedCount: Int
+        get() = checkedIds.size
+
+    /**
+     * Number of those candidates that passed [accepts] the first time they were checked
+     */
+    val finallyAcceptedCount: Int
+        get() = finallyAccepted
+
+    /**
+     * Returns true if the artwork passes every rule
+     */
+    fun accepts(artwork: T): Boolean {
+        val accepted = acceptsRules(artwork, rules.size)
+        // Later checks of the same candidate would see it as a duplicate once it has been picked
+        if (checkedIds.add(fields.id(artwork)) && accepted) {
+            finallyAccepted++
+        }
+        return accepted
+    }
+
+    /**
+     * Returns true if the artwork passes every rule looking only at its own fields, leaving the duplicate and
+     * deleted checks to [accepts] when an artwork is picked
+     * Unlike [accepts], this is safe to call from the threads reading pages
+     */
+    fun acceptsFields(artwork: T): Boolean {
+        examined.incrementAndGet()
+        return acceptsRules(artwork, fieldRuleCount).also { if (it) fieldsAccepted.incrementAndGet() }
+    }
+
+    private fun acceptsRules(artwork: T, count: Int): Boolean {
+        for (i in 0 until count) {
+            val rule = rules[i]
+            if (!rule.accepts(artwork)) {
+                rule.reject()
+                return false
+            }
+        }
+        return true
+    }
+
+    /**
+     * Returns the first artwork in the list passing every rule, or null if none do
+     */
+    fun firstAccepted(artworks: List<T>): T? {
+        for (i in artworks.indices) {
+            if (accepts(artworks[i])) {
+                return artworks[i]
+            }
+        }
+        return null
+    }
+
+    // e.g. "manga=3, views=12, duplicate=1, deleted=0"
+    fun rejectionSummary(): String = rules.joinToString { it.name + "=" + it.rejections }
+}
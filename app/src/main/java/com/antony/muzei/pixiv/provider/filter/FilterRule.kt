@@ -0,0 +1,44 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.provider.filter
+
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * A single filtering rule, which counts how many artworks it has rejected
+ */
+abstract class FilterRule<T>(val name: String) {
+    // Pages may be filtered on several threads at once while they are being read
+    private val rejectionCount = AtomicInteger()
+
+    val rejections: Int
+        get() = rejectionCount.get()
+
+    internal fun reject() {
+        rejectionCount.incrementAndGet()
+    }
+
+    abstract fun accepts(artwork: T): Boolean
+}
+
+/**
+ * Tests an artwork id without boxing it, unlike (Int) -> Boolean
+ */
+fun interface IdPredicate {
+    fun test(id: Int): Boolean
+}
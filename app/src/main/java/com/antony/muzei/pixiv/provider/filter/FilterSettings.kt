@@ -0,0 +1,57 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.provider.filter
+
+import android.content.SharedPreferences
+
+/**
+ * The user's filtering preferences, read once per run
+ */
+class FilterSettings(
+        val showManga: Boolean,
+        // 0 any, 1 landscape, 2 portrait
+        val aspectRatioSetting: Int,
+        val minimumViews: Int,
+        val minimumWidth: Int,
+        val minimumHeight: Int,
+        val rankingFilterLevels: Set<String>,
+        val authFilterLevels: Set<String>
+) {
+    /**
+     * Identifies these settings, so that statistics gathered under different settings are kept apart
+     */
+    val signature: String
+        get() = listOf(showManga, aspectRatioSetting, minimumViews, minimumWidth, minimumHeight,
+                rankingFilterLevels.sorted(), authFilterLevels.sorted()).joinToString(",")
+
+    companion object {
+        fun fromPreferences(sharedPrefs: SharedPreferences): FilterSettings = FilterSettings(
+                showManga = sharedPrefs.getBoolean("pref_showManga", false),
+                aspectRatioSetting = sharedPrefs.getString("pref_aspectRatioSelect", "0")!!.toInt(),
+                minimumViews = sharedPrefs.getInt("prefSlider_minViews", 0),
+                minimumWidth = sharedPrefs.getInt("prefSlider_minimumWidth", 0),
+                minimumHeight = sharedPrefs.getInt("prefSlider_minimumHeight", 0),
+                rankingFilterLevels = sharedPrefs.getStringSet("pref_rankingFilterSelect", null) ?: setOf("0"),
+                // null default case allowed
+                // App *MUST* be first opened in order to change the update mode and log in
+                // Opening the app populates the shared preference with a default entry
+                // As opposed to ranking, where there can be an empty shared preference
+                authFilterLevels = sharedPrefs.getStringSet("pref_authFilterSelect", null) ?: emptySet()
+        )
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.provider.filter
+
+import android.content.Context
+import android.content.SharedPreferences
+import android.util.Log
+import kotlin.math.ceil
+
+/**
+ * Remembers, across runs, what share of the artworks in a feed pass the current filter settings
+ *
+ * From this the worker predicts how many pages it will need for the next batch of artworks, and sets
+ * a budget on how many pages it may fetch at all, so that strict filters cannot cause an endless chain
+ * of requests for pages that match nothing
+ *
+ * What is recorded is every candidate the filters examined against how many of them passed, not how many
+ * artworks were selected. The number selected is capped by how many were wanted, so recording that would
+ * only ever confirm whatever was predicted
+ * Two rates are kept: the field rate, of candidates passing the rules on their own fields as pages are read,
+ * and the final rate, of those candidates then also passing the duplicate and deleted checks when picked.
+ * [predictedPages] is driven by their product, the share of all candidates that end up selectable, so that
+ * a ranking already mostly downloaded on earlier runs is predicted to need more pages
+class FilterStatistics(context: Context) {
+
+    companion object {
+        private const val LOG_TAG = "ANTONY_FILTER"
+        private const val PREFERENCE_FILE_NAME = "filter_statistics"
+
+        // Older runs count for less, so the prediction follows changes in the feed
+        private const val DECAY = 0.8f
+
+        // Assumed before anything is known: half of all artworks pass the field rules, weighted as two
+        // candidates' worth, and those that do are neither duplicates nor deleted, weighted as one
+        private const val PRIOR_ACCEPTED = 1f
+        private const val PRIOR_EXAMINED = 2f
+        private const val PRIOR_FINALLY_ACCEPTED = 1f
+        private const val PRIOR_CHECKED = 1f
+
+        // Allow for twice the predicted pages, within these bounds
+        private const val BUDGET_FACTOR = 2
+        private const val MIN_PAGE_BUDGET = 3
+        private const val MAX_PAGE_BUDGET = 20
+
+        // Each key is tiny, but filter settings can be changed any number of times
+        private const val MAX_KEYS = 64
+    }
+
+    private val sharedPrefs = context.applicationContext.getSharedPreferences(PREFERENCE_FILE_NAME, Context.MODE_PRIVATE)
+
+    /**
+     * Share of the artworks examined that are expected to pass every rule, the field rules and then
+     * the duplicate and deleted checks
+     */
+    fun acceptanceRate(key: String): Float = fieldRate(key) * finalRate(key)
+
+    private fun fieldRate(key: String): Float =
+            (sharedPrefs.getFloat("$key/accepted", 0f) + PRIOR_ACCEPTED) /
+                    (sharedPrefs.getFloat("$key/examined", 0f) + PRIOR_EXAMINED)
+
+    private fun finalRate(key: String): Float =
+            (sharedPrefs.getFloat("$key/finallyAccepted", 0f) + PRIOR_FINALLY_ACCEPTED) /
+                    (sharedPrefs.getFloat("$key/checked", 0f) + PRIOR_CHECKED)
+
+    /**
+     * Pages of [artworksPerPage] expected to be needed to find this many matching artworks
+     */
+    fun predictedPages(key: String, matchesWanted: Int, artworksPerPage: Int): Int =
+            ceil(matchesWanted / (acceptanceRate(key) * artworksPerPage)).toInt().coerceAtLeast(1)
+
+    /**
+     * The most pages that may be fetched while looking for this many matching artworks
+     * Until a run has been recorded under these filter settings, the full budget is allowed
+     */
+    fun pageBudget(key: String, matchesWanted: Int, artworksPerPage: Int): Int {
+        if (!sharedPrefs.contains("$key/examined")) {
+            return MAX_PAGE_BUDGET
+        }
+        return (predictedPages(key, matchesWanted, artworksPerPage) * BUDGET_FACTOR).coerceIn(MIN_PAGE_BUDGET, MAX_PAGE_BUDGET)
+    }
+
+    /**
+     * Records a run of this filter: the candidates its field rules examined and how many of those passed,
+     * and the candidates then checked when picking and how many of those passed as well
+     */
+    fun record(key: String, filter: ArtworkFilter<*>) {
+        if (filter.examinedCount <= 0) {
+            return
+        }
+        val editor = sharedPrefs.edit()
+        if (!sharedPrefs.contains("$key/examined") && sharedPrefs.all.size >= MAX_KEYS * 4) {
+            editor.clear()
+        }
+        accumulate(editor, "$key/accepted", filter.acceptedCount)
+        accumulate(editor, "$key/examined", filter.examinedCount)
+        accumulate(editor, "$key/finallyAccepted", filter.finallyAcceptedCount)
+        accumulate(editor, "$key/checked", filter.checkedCount)
+        editor.apply()
+        Log.d(LOG_TAG, "$key now at a field rate of " + fieldRate(key) + ", final rate of " + finalRate(key))
+    }
+
+    private fun accumulate(editor: SharedPreferences.Editor, name: String, count: Int) {
+        editor.putFloat(name, sharedPrefs.getFloat(name, 0f) * DECAY + count)
+    }
+}
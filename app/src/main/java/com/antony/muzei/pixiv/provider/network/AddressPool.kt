@@ -0,0 +1,164 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.provider.network
+
+import java.io.IOException
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.Socket
+import java.net.UnknownHostException
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Candidate addresses for each host, handed out fastest first
+ *
+ * The time to connect to each address is probed in the background, and [lookup] orders the candidates by
+ * how often they have failed lately, then by their smoothed connect time
+ * That way OkHttp tries a slow or dead address last, instead of first waiting out its whole connect timeout on it
+ * An ordering is reused until it is [ttlMillis] old, after which the host is probed again in the background;
+ * [lookup] itself never waits on a probe
+ *
+ * The port, the probe, the clock and the executor can all be swapped, so the pool can be run against
+ * local stand-in sockets
+ */
+class AddressPool(
+        candidates: Map<String, List<InetAddress>>,
+        private val port: Int = 443,
+        private val ttlMillis: Long = TimeUnit.MINUTES.toMillis(10),
+        private val probeTimeoutMillis: Int = 3000,
+        private val clock: () -> Long = System::currentTimeMillis,
+        private val probeConnect: (InetSocketAddress, Int) -> Long = { address, timeoutMillis -> connectTime(address, timeoutMillis) },
+        private val executor: Executor = probeExecutor
+) {
+
+    companion object {
+        // Probing is rare and never urgent, one thread is plenty for every pool
+        private val probeExecutor: Executor by lazy {
+            Executors.newSingleThreadExecutor { runnable ->
+                Thread(runnable, "AddressPool probe").apply { isDaemon = true }
+            }
+        }
+
+        /**
+         * Milliseconds taken to open a TCP connection to the address, which is closed again straight away
+         */
+        @Throws(IOException::class)
+        fun connectTime(address: InetSocketAddress, timeoutMillis: Int): Long {
+            Socket().use { socket ->
+                val start = System.nanoTime()
+                socket.connect(address, timeoutMillis)
+                return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+            }
+        }
+    }
+
+    private class Candidate(val address: InetAddress) {
+        // Smoothed over the recent probes, or -1 until the first one succeeds
+        @Volatile
+        var connectMillis = -1L
+
+        // Failures since the last success, counted from both the probing thread and OkHttp's threads
+        val failures = AtomicInteger()
+    }
+
+    private class Pool(val candidates: List<Candidate>) {
+        @Volatile
+        var ordered: List<InetAddress> = candidates.map { it.address }
+
+        // Probed never, so stale straight away
+        @Volatile
+        var orderedAt: Long? = null
+
+        val probing = AtomicBoolean()
+    }
+
+    private val pools: Map<String, Pool> = candidates.mapValues { (_, addresses) -> Pool(addresses.map { Candidate(it) }) }
+
+    /**
+     * Returns the candidates for the host, best first
+     * Stale or never probed hosts are handed out in their last known order while they are probed
+     */
+    @Throws(UnknownHostException::class)
+    fun lookup(host: String): List<InetAddress> {
+        val pool = pools[host] ?: throw UnknownHostException("No candidate addresses for $host")
+        val orderedAt = pool.orderedAt
+        if (orderedAt == null || clock() - orderedAt >= ttlMillis) {
+            if (pool.probing.compareAndSet(false, true)) {
+                executor.execute {
+                    try {
+                        probeAll(pool)
+                    } finally {
+                        pool.probing.set(false)
+                    }
+                }
+            }
+        }
+        return pool.ordered
+    }
+
+    /**
+     * Probes every candidate for the host now, waiting for the probes, and returns the new order
+     */
+    @Throws(UnknownHostException::class)
+    fun refresh(host: String): List<InetAddress> {
+        val pool = pools[host] ?: throw UnknownHostException("No candidate addresses for $host")
+        probeAll(pool)
+        return pool.ordered
+    }
+
+    /**
+     * Counts a failed connection made outside of the probes against the address, so it drops down the order
+     * without waiting for the next probe
+     */
+    fun reportFailure(address: InetAddress) {
+        pools.values.forEach { pool ->
+            pool.candidates.firstOrNull { it.address == address }?.let { candidate ->
+                candidate.failures.incrementAndGet()
+                pool.ordered = order(pool)
+            }
+        }
+    }
+
+    private fun probeAll(pool: Pool) {
+        pool.candidates.forEach { candidate ->
+            try {
+                val millis = probeConnect(InetSocketAddress(candidate.address, port), probeTimeoutMillis)
+                val previous = candidate.connectMillis
+                candidate.connectMillis = if (previous < 0) millis else (previous * 3 + millis) / 4
+                candidate.failures.set(0)
+            } catch (e: IOException) {
+                candidate.failures.incrementAndGet()
+            }
+        }
+        pool.ordered = order(pool)
+        pool.orderedAt = clock()
+    }
+
+    // Fewest failures first, then fastest, with addresses never measured after those that have been
+    // sortedWith is stable, so ties keep their original order
+    // The counts are read once up front, as other threads may change them while sorting
+    private fun order(pool: Pool): List<InetAddress> =
+            pool.candidates
+                    .map { Triple(it.address, it.failures.get(), if (it.connectMillis < 0) Long.MAX_VALUE else it.connectMillis) }
+                    .sortedWith(compareBy<Triple<InetAddress, Int, Long>> { it.second }.thenBy { it.third })
+                    .map { it.first }
+}
@@ -17,32 +17,39 @@
 
 package com.antony.muzei.pixiv.provider.network;
 
-import com.antony.muzei.pixiv.provider.network.moshi.Illusts;
-
+import okhttp3.ResponseBody;
 import retrofit2.Call;
 import retrofit2.http.GET;
 import retrofit2.http.Query;
+import retrofit2.http.Streaming;
 import retrofit2.http.Url;
 
+// Bodies are read by ArtworkStreamReader as they arrive, filtering while parsing
 public interface AuthJsonServerResponse {
 
+    @Streaming
     @GET("/v2/illust/follow?restrict=public")
-    Call<Illusts> getFollowJson();
+    Call<ResponseBody> getFollowJson();
 
+    @Streaming
     @GET("v1/user/bookmarks/illust?restrict=public")
-    Call<Illusts> getBookmarkJson(@Query("user_id") String userId);
+    Call<ResponseBody> getBookmarkJson(@Query("user_id") String userId);
 
+    @Streaming
     @GET("v1/search/illust?search_target=partial_match_for_tags&sort=date_desc&filter=for_ios")
-    Call<Illusts> getTagSearchJson(@Query("word") String tag);
+    Call<ResponseBody> getTagSearchJson(@Query("word") String tag);
 
+    @Streaming
     @GET("v1/user/illusts?filter=for_ios")
-    Call<Illusts> getArtistJson(@Query("user_id") String artist_id);
+    Call<ResponseBody> getArtistJson(@Query("user_id") String artist_id);
 
     // filter=for_ios here, !?(･_･;?
+    @Streaming
     @GET("v1/illust/recommended?content_type=illust&include_ranking_label=true&include_ranking_illusts=true&filter=for_ios")
-    Call<Illusts> getRecommendedJson();
+    Call<ResponseBody> getRecommendedJson();
 
+    @Streaming
     @GET
-    Call<Illusts> getNextUrl(@Url String url);
+    Call<ResponseBody> getNextUrl(@Url String url);
 
 }
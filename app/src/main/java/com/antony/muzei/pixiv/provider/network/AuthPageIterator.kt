@@ -0,0 +1,138 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.provider.network
+
+import com.antony.muzei.pixiv.provider.network.moshi.ArtworkStreamReader
+import com.antony.muzei.pixiv.provider.network.moshi.AuthArtwork
+import com.antony.muzei.pixiv.provider.network.moshi.Illusts
+import okhttp3.ResponseBody
+import retrofit2.Call
+import java.io.Closeable
+import java.io.IOException
+import java.util.concurrent.Executors
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.Semaphore
+
+/**
+ * Walks the pages of an authenticated feed by following nextUrl, fetching pages in the background
+ * while the current page is still being filtered
+ *
+ * No more than [prefetchDepth] pages are ever requested ahead of what the caller has asked for, whether they
+ * are still in flight or already waiting to be picked up, and no more than [maxPages] pages are fetched
+ * in total, counting the first page that the caller already has
+ * With a prefetchDepth of zero, each page is only requested once the caller asks for it
+ * Each page is filtered with [accept] on the background thread while it is being read, see [ArtworkStreamReader]
+ */
+class AuthPageIterator(
+        private val service: AuthJsonServerResponse,
+        private val firstPage: Illusts,
+        private val maxPages: Int,
+        private val prefetchDepth: Int,
+        private val accept: (AuthArtwork) -> Boolean
+) : Closeable {
+
+    companion object {
+        // The app API's feeds return 30 illusts per page
+        const val ARTWORKS_PER_PAGE = 30
+    }
+
+    // A page, the failure to fetch one, or with neither, the end of the feed
+    private class Page(val illusts: Illusts?, val failure: Throwable?)
+
+    // Bounded by requests rather than by queued pages, see requestPermits
+    private val pages = LinkedBlockingQueue<Page>()
+
+    // One permit for every page the fetching thread may request: prefetchDepth to begin with,
+    // and one more each time the caller asks for a page
+    private val requestPermits = Semaphore(prefetchDepth.coerceAtLeast(0))
+
+    private val executor = Executors.newSingleThreadExecutor()
+
+    @Volatile
+    private var currentCall: Call<ResponseBody>? = null
+
+    private var finished = false
+
+    init {
+        start()
+    }
+
+    private fun start() {
+        executor.execute {
+            try {
+                var nextUrl: String? = firstPage.nextUrl
+                var pagesFetched = 1
+                while (nextUrl != null && pagesFetched < maxPages && !Thread.currentThread().isInterrupted) {
+                    // Blocks while the caller is already prefetchDepth pages behind
+                    requestPermits.acquire()
+                    val page = try {
+                        val call = service.getNextUrl(nextUrl).also { currentCall = it }
+                        val response = call.execute()
+                        val body = response.body()
+                        if (body == null) {
+                            response.errorBody()?.close()
+                            throw IOException("HTTP code " + response.code())
+                        }
+                        val illusts = body.use { ArtworkStreamReader.readIllusts(it.source(), accept) }
+                        nextUrl = illusts.nextUrl
+                        Page(illusts, null)
+                    } catch (e: Throwable) {
+                        // Whatever went wrong, the thread must not end without a page,
+                        // the caller would be waiting on it forever
+                        nextUrl = null
+                        Page(null, e)
+                    }
+                    pagesFetched++
+                    pages.put(page)
+                }
+                pages.put(Page(null, null))
+            } catch (e: InterruptedException) {
+                // Closed by the caller
+            }
+        }
+    }
+
+    /**
+     * Returns the next page, waiting for it if it has not arrived yet
+     * Returns null once the feed or the page budget has run out
+     */
+    @Throws(IOException::class)
+    fun next(): Illusts? {
+        if (finished) {
+            return null
+        }
+        requestPermits.release()
+        val page = pages.take()
+        page.failure?.let {
+            finished = true
+            throw IOException("Fetching the next page failed", it)
+        }
+        if (page.illusts == null) {
+            finished = true
+        }
+        return page.illusts
+    }
+
+    /**
+     * Stops fetching, abandoning any page still in flight
+     */
+    override fun close() {
+        executor.shutdownNow()
+        currentCall?.cancel()
+    }
+}
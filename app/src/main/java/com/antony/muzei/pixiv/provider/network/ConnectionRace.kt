@@ -0,0 +1,138 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.provider.network
+
+import android.util.Log
+import okhttp3.Call
+import okhttp3.Callback
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.Response
+import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * Picks between the direct and bypass paths for each host, happy eyeballs style
+ *
+ * The first time a host is needed, a HEAD request is sent to it over the direct path, and, if that has not
+ * answered within [HEAD_START_MILLIS], over the bypass path as well
+ * Whichever gets any HTTP response first wins, and is used for the host for [WINNER_TTL_MILLIS]
+ * Both paths share one connection pool, so the winner's connection is there for the real request to reuse
+ */
+object ConnectionRace {
+
+    private const val LOG_TAG = "ANTONY_NETWORK"
+
+    // Direct is preferred, as it is the faster path for those who do not need the bypass
+    private const val HEAD_START_MILLIS = 300L
+
+    private val WINNER_TTL_MILLIS = TimeUnit.MINUTES.toMillis(30)
+
+    // Neither path gets longer than this to answer, the real request then goes through the bypass
+    private val RACE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(20)
+
+    private class Winner(val path: NetworkPath, val decidedAt: Long)
+
+    private class Result(val path: NetworkPath, val succeeded: Boolean)
+
+    private val winners = ConcurrentHashMap<String, Winner>()
+
+    private val hostLocks = ConcurrentHashMap<String, Any>()
+
+    /**
+     * Returns DIRECT or BYPASS for the host, racing the two if there is no recent winner
+     * May block for as long as the race takes, so must not be called on the main thread
+     */
+    fun pathFor(host: String): NetworkPath {
+        freshWinner(host)?.let { return it }
+        // Requests to the same host wait on the one race, rather than each starting their own
+        synchronized(hostLocks.getOrPut(host) { Any() }) {
+            freshWinner(host)?.let { return it }
+            val startTime = System.currentTimeMillis()
+            val path = race(host)
+            Log.d(LOG_TAG, host + ": " + (path ?: "neither path") + " answered first, after " +
+                    (System.currentTimeMillis() - startTime) + " milliseconds")
+            if (path != null) {
+                winners[host] = Winner(path, System.currentTimeMillis())
+            }
+            return path ?: NetworkPath.BYPASS
+        }
+    }
+
+    /**
+     * Forgets the winner for the host if it was this path, so that the next request races again
+     */
+    fun forget(host: String, path: NetworkPath) {
+        winners[host]?.takeIf { it.path == path }?.let { winners.remove(host, it) }
+    }
+
+    private fun freshWinner(host: String): NetworkPath? =
+            winners[host]?.takeIf { System.currentTimeMillis() - it.decidedAt < WINNER_TTL_MILLIS }?.path
+
+    // Returns null if neither path answered
+    private fun race(host: String): NetworkPath? {
+        val request = Request.Builder().url("https://$host/").head().build()
+        val results = LinkedBlockingQueue<Result>()
+        val calls = ArrayList<Call>(2)
+
+        fun start(path: NetworkPath, client: OkHttpClient) {
+            client.newCall(request).also { calls.add(it) }.enqueue(object : Callback {
+                override fun onResponse(call: Call, response: Response) {
+                    response.close()
+                    results.add(Result(path, true))
+                }
+
+                override fun onFailure(call: Call, e: IOException) {
+                    results.add(Result(path, false))
+                }
+            })
+        }
+
+        try {
+            start(NetworkPath.DIRECT, OkHttpSingleton.getDirectInstance())
+            var pending = 1
+            var result = results.poll(HEAD_START_MILLIS, TimeUnit.MILLISECONDS)
+            if (result?.succeeded == true) {
+                return result.path
+            }
+            if (result != null) {
+                pending--
+            }
+            start(NetworkPath.BYPASS, OkHttpSingleton.getInstance())
+            pending++
+
+            val deadline = System.currentTimeMillis() + RACE_TIMEOUT_MILLIS
+            while (pending > 0) {
+                result = results.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS) ?: return null
+                if (result.succeeded) {
+                    return result.path
+                }
+                pending--
+            }
+            return null
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+            return null
+        } finally {
+            // The loser has nothing more to do
+            calls.forEach { it.cancel() }
+        }
+    }
+}
@@ -20,10 +20,19 @@ package com.antony.muzei.pixiv.provider.network;
 import okhttp3.ResponseBody;
 import retrofit2.Call;
 import retrofit2.http.GET;
+import retrofit2.http.Header;
+import retrofit2.http.Streaming;
 import retrofit2.http.Url;
 
 public interface ImageDownloadServerResponse
 {
+    // Streamed, otherwise Retrofit reads the whole image into memory before returning
     @GET
+    @Streaming
     Call<ResponseBody> downloadImage(@Url String url);
+
+    // A null range requests the whole image
+    @GET
+    @Streaming
+    Call<ResponseBody> downloadImage(@Url String url, @Header("Range") String range);
 }
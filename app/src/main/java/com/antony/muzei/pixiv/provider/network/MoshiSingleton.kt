@@ -0,0 +1,35 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.provider.network
+
+import com.squareup.moshi.Moshi
+
+/**
+ * The one Moshi instance used for the whole process
+ *
+ * The model classes in [com.antony.muzei.pixiv.provider.network.moshi] have their adapters generated at compile time,
+ * and Moshi keeps every adapter it creates, so each one is only ever looked up once
+ */
+object MoshiSingleton {
+
+    private val MoshiSingleton: Moshi = Moshi.Builder().build()
+
+    fun getInstance(): Moshi {
+        return MoshiSingleton
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.provider.network
+
+import android.content.SharedPreferences
+
+/**
+ * How connections to pixiv are made
+ *  DIRECT  the system's own DNS and TLS
+ *  BYPASS  fixed addresses from RubyHttpDns, and TLS without SNI from RubySSLSocketFactory
+ *  AUTO    whichever of the two connects first to a host, see [ConnectionRace]
+ */
+enum class NetworkPath {
+    DIRECT,
+    BYPASS,
+    AUTO;
+
+    companion object {
+        /*
+            pref_networkPath replaces the old pref_enableNetworkBypass switch, which is still honoured
+            for those who turned it on before
+         */
+        @JvmStatic
+        fun fromPreferences(sharedPrefs: SharedPreferences): NetworkPath =
+                when (sharedPrefs.getString("pref_networkPath", null)) {
+                    "direct" -> DIRECT
+                    "bypass" -> BYPASS
+                    "auto" -> AUTO
+                    else -> if (sharedPrefs.getBoolean("pref_enableNetworkBypass", false)) BYPASS else AUTO
+                }
+    }
+}
@@ -3,7 +3,13 @@ package com.antony.muzei.pixiv.provider.network
 import android.annotation.SuppressLint
 import com.antony.muzei.pixiv.BuildConfig
 import com.antony.muzei.pixiv.provider.network.interceptor.NetworkTrafficLogInterceptor
+import okhttp3.Call
+import okhttp3.EventListener
 import okhttp3.OkHttpClient
+import okhttp3.Protocol
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.net.Proxy
 import java.security.cert.X509Certificate
 import java.util.concurrent.TimeUnit
 import javax.net.ssl.SSLSession
@@ -31,17 +37,56 @@ object OkHttpSingleton {
                 }
             }
 
-    private val OkHttpSingleton: OkHttpClient = OkHttpClient.Builder()
+    // A failed connection pushes the address down RubyHttpDns's order straight away
+    // OkHttp then goes on to the next address, so the host only races its paths again, if the bypass
+    // was its winner, once the whole call has failed
+    private val bypassFailureListener = object : EventListener() {
+        override fun connectFailed(call: Call, inetSocketAddress: InetSocketAddress, proxy: Proxy,
+                                   protocol: Protocol?, ioe: IOException) {
+            // Connects aborted by Call.cancel(), such as the loser of a ConnectionRace, say nothing about the address
+            if (!call.isCanceled()) {
+                RubyHttpDns.reportFailure(inetSocketAddress.address)
+            }
+        }
+
+        override fun callFailed(call: Call, ioe: IOException) {
+            if (!call.isCanceled()) {
+                ConnectionRace.forget(call.request().url.host, NetworkPath.BYPASS)
+            }
+        }
+    }
+
+    private val directFailureListener = object : EventListener() {
+        override fun callFailed(call: Call, ioe: IOException) {
+            if (!call.isCanceled()) {
+                ConnectionRace.forget(call.request().url.host, NetworkPath.DIRECT)
+            }
+        }
+    }
+
+    // The system's own DNS and TLS
+    // Both paths are built off this one, and so share its dispatcher and connection pool
+    private val directClient: OkHttpClient = OkHttpClient.Builder()
             .connectTimeout(60L, TimeUnit.SECONDS)
             .readTimeout(60L, TimeUnit.SECONDS)
             .writeTimeout(60L, TimeUnit.SECONDS)
+            .eventListener(directFailureListener)
+            .logOnDebug()
+            .build()
+
+    // The SNI bypass
+    private val OkHttpSingleton: OkHttpClient = directClient.newBuilder()
             .sslSocketFactory(RubySSLSocketFactory(), x509TrustManager)
             .hostnameVerifier { _: String?, _: SSLSession? -> true }
             .dns(RubyHttpDns())
-            .logOnDebug()
+            .eventListener(bypassFailureListener)
             .build()
 
     fun getInstance(): OkHttpClient {
         return OkHttpSingleton
     }
+
+    fun getDirectInstance(): OkHttpClient {
+        return directClient
+    }
 }
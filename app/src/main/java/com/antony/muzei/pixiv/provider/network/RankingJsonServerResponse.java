@@ -17,17 +17,20 @@
 
 package com.antony.muzei.pixiv.provider.network;
 
-import com.antony.muzei.pixiv.provider.network.moshi.Contents;
-
+import okhttp3.ResponseBody;
 import retrofit2.Call;
 import retrofit2.http.GET;
 import retrofit2.http.Query;
+import retrofit2.http.Streaming;
 
+// Bodies are read by ArtworkStreamReader as they arrive, filtering while parsing
 public interface RankingJsonServerResponse
 {
+    @Streaming
     @GET("/ranking.php")
-    Call<Contents> getRankingJson(@Query("mode") String mode);
+    Call<ResponseBody> getRankingJson(@Query("mode") String mode);
 
+    @Streaming
     @GET("/ranking.php")
-    Call<Contents> getRankingJson(@Query("mode") String mode, @Query("p") int page, @Query("date") String date);
+    Call<ResponseBody> getRankingJson(@Query("mode") String mode, @Query("p") int page, @Query("date") String date);
 }
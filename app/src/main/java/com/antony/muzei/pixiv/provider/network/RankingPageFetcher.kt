@@ -0,0 +1,129 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.provider.network
+
+import android.util.Log
+import com.antony.muzei.pixiv.provider.network.moshi.ArtworkStreamReader
+import com.antony.muzei.pixiv.provider.network.moshi.Contents
+import com.antony.muzei.pixiv.provider.network.moshi.RankingArtwork
+import com.squareup.moshi.JsonDataException
+import kotlinx.coroutines.async
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.runBlocking
+import java.io.Closeable
+import java.io.IOException
+import java.util.concurrent.Executors
+
+/**
+ * Fetches several pages of a ranking at once, instead of one page at a time
+ *
+ * All pages go through the one [RankingJsonServerResponse], so they share its client's connection pool,
+ * and every fetch runs on the same threads, which are let go of on [close]
+ * Each page is filtered with [accept] while it is being read, see [ArtworkStreamReader]
+ */
+class RankingPageFetcher(
+        private val service: RankingJsonServerResponse,
+        private val mode: String,
+        private val accept: (RankingArtwork) -> Boolean
+) : Closeable {
+
+    companion object {
+        private const val LOG_TAG = "ANTONY_RANKING"
+
+        // There is a tenth page actually, but the next page number integer becomes a boolean
+        // Moshi can't handle this and throws a fit.
+        // Thus I've limited my app to parsing only the top 450 rankings
+        const val LAST_PAGE = 9
+
+        // ranking.php pages hold 50 artworks each
+        const val ARTWORKS_PER_PAGE = 50
+    }
+
+    /**
+     * Several consecutive pages of one day's ranking, merged into one list of candidates in rank order
+     * [first] is the lowest numbered page, and is kept for its mode and dates
+     * [lastPage] is the highest page requested, whether or not it was fetched
+     * [artworks] holds only those that passed accept()
+     */
+    class RankingPages(val first: Contents, val lastPage: Int, val pageCount: Int, val artworks: List<RankingArtwork>) {
+        val date: String
+            get() = first.date
+
+        val prevDate: String
+            get() = first.prev_date
+    }
+
+    private val executor = Executors.newFixedThreadPool(LAST_PAGE)
+    private val dispatcher = executor.asCoroutineDispatcher()
+
+    /**
+     * Requests the pages at the same time, and waits for all of them
+     * A null date fetches the latest ranking
+     * Pages that fail are left out, unless every page failed
+     * Malformed pages are reported as IOExceptions too, like any other failed page
+     */
+    @Throws(IOException::class)
+    fun fetch(date: String?, pages: IntRange): RankingPages {
+        val results = runBlocking(dispatcher) {
+            pages.map { page ->
+                async {
+                    runCatching {
+                        val response = if (date == null && page == 1) {
+                            service.getRankingJson(mode).execute()
+                        } else {
+                            service.getRankingJson(mode, page, date).execute()
+                        }
+                        val body = response.body()
+                        if (body == null) {
+                            response.errorBody()?.close()
+                            throw IOException("Ranking page $page: HTTP code " + response.code())
+                        }
+                        try {
+                            body.use { ArtworkStreamReader.readContents(it.source(), accept) }
+                        } catch (e: JsonDataException) {
+                            throw IOException("Ranking page $page is malformed", e)
+                        }
+                    }
+                }
+            }.awaitAll()
+        }
+
+        val fetched = results.mapNotNull { it.getOrNull() }
+        if (fetched.isEmpty()) {
+            val failure = results.first().exceptionOrNull()!!
+            throw failure as? IOException ?: IOException("Ranking pages failed", failure)
+        }
+        results.forEach { result -> result.exceptionOrNull()?.let { Log.w(LOG_TAG, "Ranking page failed", it) } }
+
+        // Without a date, the pages are fetched separately against whatever the latest ranking is
+        // Should the ranking roll over partway through, only the pages matching the first are kept
+        val first = fetched.first()
+        val sameDay = fetched.filter { it.date == first.date }
+        return RankingPages(
+                first,
+                pages.last,
+                sameDay.size,
+                sameDay.flatMap { it.artworks }.sortedBy { it.rank }
+        )
+    }
+
+    override fun close() {
+        executor.shutdownNow()
+    }
+}
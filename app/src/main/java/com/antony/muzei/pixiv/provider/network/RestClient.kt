@@ -17,16 +17,26 @@
 package com.antony.muzei.pixiv.provider.network
 
 import android.os.Build
+import androidx.preference.PreferenceManager
+import com.antony.muzei.pixiv.PixivMuzeiSupervisor
 import com.antony.muzei.pixiv.PixivProviderConst.PIXIV_HOST_URL
+import com.antony.muzei.pixiv.login.OAuthResponseService
+import com.antony.muzei.pixiv.provider.network.interceptor.CachePolicyInterceptor
+import com.antony.muzei.pixiv.provider.network.interceptor.JsonCacheInterceptor
 import com.antony.muzei.pixiv.provider.network.interceptor.PixivAuthHeaderInterceptor
+import okhttp3.Cache
+import okhttp3.Call
 import okhttp3.Interceptor
+import okhttp3.OkHttpClient
 import okhttp3.Response
 import retrofit2.Retrofit
 import retrofit2.converter.moshi.MoshiConverterFactory
+import java.io.File
 import java.security.MessageDigest
 import java.security.NoSuchAlgorithmException
 import java.text.SimpleDateFormat
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 
 object RestClient {
 
@@ -34,15 +44,99 @@ object RestClient {
 
     private const val PIXIV_API_HOST = "https://app-api.pixiv.net"
 
-    private val okHttpClientAuthBuilder = OkHttpSingleton.getInstance().newBuilder()
-            .apply {
-                addNetworkInterceptor(PixivAuthHeaderInterceptor())
-                addInterceptor(CustomClientHeaderInterceptor())
+    // Shared by the ranking and auth feed clients, see JsonCacheInterceptor
+    private val jsonCacheInterceptor = JsonCacheInterceptor(
+            { PixivMuzeiSupervisor.getCacheDir("json") },
+            {
+                PixivMuzeiSupervisor.getContext()?.let { context ->
+                    PreferenceManager.getDefaultSharedPreferences(context).getString("userId", null)
+                }
             }
+    )
+
+    // Every Retrofit shares the one Moshi, and so its adapters
+    private val moshiConverterFactory = MoshiConverterFactory.create(MoshiSingleton.getInstance())
+
+    private var httpCache: Cache? = null
+
+    /*
+        HTTP cache shared by the ranking and auth feed clients, sized by prefSlider_httpCacheSize in megabytes
+        Created once the app has started, as it needs a Context for its directory
+        JsonCacheInterceptor answers while a response is fresh, after that this cache revalidates it
+        with the server, which can answer 304 Not Modified instead of sending the whole JSON again
+        That only happens for responses pixiv sends with an ETag or Last-Modified, see CachePolicyInterceptor
+     */
+    @Synchronized
+    private fun getHttpCache(): Cache? {
+        httpCache?.let { return it }
+        val context = PixivMuzeiSupervisor.getContext() ?: return null
+        val sizeMegabytes = PreferenceManager.getDefaultSharedPreferences(context).getInt("prefSlider_httpCacheSize", 10)
+        return Cache(File(context.cacheDir, "http"), sizeMegabytes * 1024L * 1024L).also { httpCache = it }
+    }
+
+    // Adds both caches to a JSON client
+    private fun OkHttpClient.Builder.cacheJson(): OkHttpClient.Builder =
+            this.apply {
+                interceptors().add(0, jsonCacheInterceptor)
+                addNetworkInterceptor(CachePolicyInterceptor())
+                cache(getHttpCache())
+            }
+
+    /**
+     * Hit and miss counts of both caches, since the app started
+     */
+    fun getCacheStatistics(): String {
+        val cache = httpCache
+        return "JSON cache: " + jsonCacheInterceptor.hitCount + " hits, " + jsonCacheInterceptor.missCount + " misses" +
+                if (cache == null) "" else {
+                    "; HTTP cache: " + cache.requestCount() + " requests, " + cache.hitCount() + " hits, " +
+                            cache.networkCount() + " from network"
+                }
+    }
+
+    /**
+     * One purpose's clients, Retrofits and service, one of each per [NetworkPath], each built on first use and
+     * never changed afterwards
+     * The direct and bypass clients are derived from OkHttpSingleton, so every purpose shares its dispatcher and
+     * connection pool, and a connection to a host opened by one client is there for the others to reuse
+     * AUTO has no client of its own, it hands each call to the direct or bypass client picked by [ConnectionRace]
+     */
+    private class Purpose<S>(
+            private val baseUrl: String,
+            private val serviceClass: Class<S>?,
+            private val configure: OkHttpClient.Builder.() -> OkHttpClient.Builder
+    ) {
+        private val directClient: OkHttpClient by lazy { OkHttpSingleton.getDirectInstance().newBuilder().configure().build() }
+        private val bypassClient: OkHttpClient by lazy { OkHttpSingleton.getInstance().newBuilder().configure().build() }
+
+        // Racing may block, which is fine as calls are only ever created off the main thread
+        private val autoCallFactory = Call.Factory { request ->
+            callFactory(ConnectionRace.pathFor(request.url.host)).newCall(request)
+        }
+
+        private val retrofits = ConcurrentHashMap<NetworkPath, Retrofit>()
+        private val services = ConcurrentHashMap<NetworkPath, S>()
+
+        fun callFactory(path: NetworkPath): Call.Factory = when (path) {
+            NetworkPath.DIRECT -> directClient
+            NetworkPath.BYPASS -> bypassClient
+            NetworkPath.AUTO -> autoCallFactory
+        }
+
+        fun retrofit(path: NetworkPath): Retrofit = retrofits.getOrPut(path) {
+            Retrofit.Builder()
+                    .callFactory(callFactory(path))
+                    .baseUrl(baseUrl)
+                    .addConverterFactory(moshiConverterFactory)
+                    .build()
+        }
+
+        fun service(path: NetworkPath): S = services.getOrPut(path) { retrofit(path).create(serviceClass!!) }
+    }
 
     // Used for acquiring Ranking JSON
-    fun getRetrofitRankingInstance(bypass: Boolean): Retrofit {
-        val okHttpClientRanking = OkHttpSingleton.getInstance().newBuilder() // Debug logging interceptor
+    private val ranking = Purpose(PIXIV_HOST_URL, RankingJsonServerResponse::class.java) {
+        cacheJson()
                 .addInterceptor(Interceptor { chain: Interceptor.Chain ->
                     val original = chain.request()
                     val originalHttpUrl = original.url
@@ -60,76 +154,82 @@ object RestClient {
                                     .build()
                     chain.proceed(request)
                 })
-                .build()
-        return Retrofit.Builder()
-                .client(okHttpClientRanking)
-                .baseUrl(PIXIV_HOST_URL)
-                .addConverterFactory(MoshiConverterFactory.create())
-                .build()
     }
 
+    private fun OkHttpClient.Builder.authHeaders(): OkHttpClient.Builder =
+            this.apply {
+                addNetworkInterceptor(PixivAuthHeaderInterceptor())
+                addInterceptor(CustomClientHeaderInterceptor())
+            }
+
     // Used for acquiring auth feed mode JSON
-    fun getRetrofitAuthInstance(bypass: Boolean): Retrofit {
-        return Retrofit.Builder()
-                .client(okHttpClientAuthBuilder.build())
-                .baseUrl(PIXIV_API_HOST)
-                .addConverterFactory(MoshiConverterFactory.create())
-                .build()
+    private val auth = Purpose(PIXIV_API_HOST, AuthJsonServerResponse::class.java) {
+        authHeaders().cacheJson()
     }
 
     // Downloads images from any source
-    fun getRetrofitImageInstance(bypass: Boolean): Retrofit {
-        val imageHttpClient = OkHttpSingleton.getInstance().newBuilder()
-                .addInterceptor(Interceptor { chain: Interceptor.Chain ->
-                    val original = chain.request()
-                    val request = original.newBuilder()
-                            .header(
-                                    "User-Agent",
-                                    "PixivAndroidApp/5.0.220 (Android " + Build.VERSION.RELEASE + "; " + Build.MODEL + ")"
-                            )
-                            .header("Referer", PIXIV_HOST_URL)
-                            .build()
-                    chain.proceed(request)
-                })
-                .build()
-        return Retrofit.Builder()
-                .client(imageHttpClient)
-                .baseUrl("https://i.pximg.net")
-                .addConverterFactory(MoshiConverterFactory.create())
-                .build()
+    private val image = Purpose("https://i.pximg.net", ImageDownloadServerResponse::class.java) {
+        addInterceptor(Interceptor { chain: Interceptor.Chain ->
+            val original = chain.request()
+            val request = original.newBuilder()
+                    .header(
+                            "User-Agent",
+                            "PixivAndroidApp/5.0.220 (Android " + Build.VERSION.RELEASE + "; " + Build.MODEL + ")"
+                    )
+                    .header("Referer", PIXIV_HOST_URL)
+                    .build()
+            chain.proceed(request)
+        })
     }
 
     // Used for getting an accessToken from a refresh token or username / password
-    @JvmStatic
-    fun getRetrofitOauthInstance(bypass: Boolean): Retrofit {
-        return Retrofit.Builder()
-                .baseUrl("https://oauth.secure.pixiv.net")
-                .client(okHttpClientAuthBuilder.build())
-                .addConverterFactory(MoshiConverterFactory.create())
-                .build()
+    private val oauth = Purpose("https://oauth.secure.pixiv.net", OAuthResponseService::class.java) {
+        authHeaders()
     }
 
-    fun getRetrofitBookmarkInstance(bypass: Boolean): Retrofit {
-        val okHttpClientBookmark = OkHttpSingleton.getInstance().newBuilder()
-                .addInterceptor(Interceptor { chain: Interceptor.Chain ->
-                    val original = chain.request()
-                    val request = original.newBuilder()
-                            .header("Content-Type", "application/x-www-form-urlencoded")
-                            .header(
+    // Adding bookmarks is done with plain OkHttp requests, headers already set on them are left alone
+    private val bookmark = Purpose<Unit>(PIXIV_API_HOST, null) {
+        addInterceptor(Interceptor { chain: Interceptor.Chain ->
+            val original = chain.request()
+            val request = original.newBuilder()
+                    .apply {
+                        if (original.header("Content-Type") == null) {
+                            header("Content-Type", "application/x-www-form-urlencoded")
+                        }
+                        if (original.header("User-Agent") == null) {
+                            header(
                                     "User-Agent",
                                     "PixivAndroidApp/5.0.220 (Android " + Build.VERSION.RELEASE + "; " + Build.MODEL + ")"
                             )
-                            .build()
-                    chain.proceed(request)
-                })
-                .build()
-        return Retrofit.Builder()
-                .baseUrl(PIXIV_API_HOST)
-                .client(okHttpClientBookmark)
-                .addConverterFactory(MoshiConverterFactory.create())
-                .build()
+                        }
+                    }
+                    .build()
+            chain.proceed(request)
+        })
     }
 
+    fun getRetrofitRankingInstance(path: NetworkPath): Retrofit = ranking.retrofit(path)
+
+    fun getRankingService(path: NetworkPath): RankingJsonServerResponse = ranking.service(path)
+
+    fun getRetrofitAuthInstance(path: NetworkPath): Retrofit = auth.retrofit(path)
+
+    fun getAuthService(path: NetworkPath): AuthJsonServerResponse = auth.service(path)
+
+    fun getRetrofitImageInstance(path: NetworkPath): Retrofit = image.retrofit(path)
+
+    fun getImageService(path: NetworkPath): ImageDownloadServerResponse = image.service(path)
+
+    @JvmStatic
+    fun getRetrofitOauthInstance(path: NetworkPath): Retrofit = oauth.retrofit(path)
+
+    @JvmStatic
+    fun getOauthService(path: NetworkPath): OAuthResponseService = oauth.service(path)
+
+    fun getRetrofitBookmarkInstance(path: NetworkPath): Retrofit = bookmark.retrofit(path)
+
+    fun getBookmarkCallFactory(path: NetworkPath): Call.Factory = bookmark.callFactory(path)
+
     private fun getHashSecret(dateSecretConcat: String): String {
         try {
             val digestInstance = MessageDigest.getInstance("MD5")
@@ -19,28 +19,57 @@ package com.antony.muzei.pixiv.provider.network;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import okhttp3.Dns;
 
 /**
  * @Author: Perol_Notsfsssf
+ *
+ * Hands out pixiv's addresses directly, fastest first, see {@link AddressPool}
  */
 public class RubyHttpDns implements Dns
 {
+    private static final String API_HOSTS = "pixiv.net";
+    private static final String IMAGE_HOSTS = "i.pximg.net";
+
+    // Shared by every client, so that what one learns about an address the others benefit from
+    private static final AddressPool POOL = new AddressPool(candidates(), 443);
+
+    private static Map<String, List<InetAddress>> candidates()
+    {
+        Map<String, List<InetAddress>> candidates = new HashMap<>();
+        try
+        {
+            candidates.put(API_HOSTS, Arrays.asList(
+                    InetAddress.getByName("210.140.131.223"),
+                    InetAddress.getByName("210.140.131.219")
+            ));
+            candidates.put(IMAGE_HOSTS, Arrays.asList(
+                    InetAddress.getByName("210.140.92.143")
+            ));
+        } catch (UnknownHostException ex)
+        {
+            // IP literals are never looked up, so cannot fail
+            throw new IllegalStateException(ex);
+        }
+        return candidates;
+    }
+
+    /**
+     * Lets the pool know that a connection to this address failed, so it is tried later from now on
+     */
+    public static void reportFailure(InetAddress address)
+    {
+        POOL.reportFailure(address);
+    }
+
     @Override
     public List<InetAddress> lookup(String hostname) throws UnknownHostException
     {
-        List<InetAddress> list = new ArrayList<>();
-        if (!hostname.contains("i.pximg"))
-        {
-			list.add(InetAddress.getByName("210.140.131.223"));
-			list.add(InetAddress.getByName("210.140.131.219"));
-		} else
-		{
-			list.add(InetAddress.getByName("210.140.92.143"));
-		}
-        return list;
+        return POOL.lookup(hostname.contains("i.pximg") ? IMAGE_HOSTS : API_HOSTS);
     }
 }
@@ -0,0 +1,52 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.provider.network.interceptor
+
+import okhttp3.Interceptor
+import okhttp3.Response
+
+/**
+ * Network interceptor letting the HTTP cache store ranking and feed responses that pixiv sends with
+ * a validator (ETag or Last-Modified) but without a cache policy
+ *
+ * Such responses are marked no-cache, so the cache keeps them but revalidates them with If-None-Match /
+ * If-Modified-Since on every request, and a 304 then stands in for the whole JSON
+ * Freshness is left to [JsonCacheInterceptor], so responses without a validator are not stored here at all,
+ * as they could never be revalidated and would only be a second copy of what it already serves
+ * Responses that already carry a policy (Cache-Control or Expires) are left exactly as the server sent them,
+ * so whether revalidation happens at all depends on the headers pixiv sends
+ */
+class CachePolicyInterceptor : Interceptor {
+
+    override fun intercept(chain: Interceptor.Chain): Response {
+        val request = chain.request()
+        val response = chain.proceed(request)
+        if (request.method != "GET" || !response.isSuccessful || hasCachePolicy(response) || !hasValidator(response)) {
+            return response
+        }
+        return response.newBuilder()
+                .header("Cache-Control", "private, no-cache")
+                .build()
+    }
+
+    private fun hasCachePolicy(response: Response): Boolean =
+            response.header("Cache-Control") != null || response.header("Expires") != null
+
+    private fun hasValidator(response: Response): Boolean =
+            response.header("ETag") != null || response.header("Last-Modified") != null
+}
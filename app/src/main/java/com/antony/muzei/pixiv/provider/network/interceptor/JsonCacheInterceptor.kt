@@ -0,0 +1,185 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.provider.network.interceptor
+
+import android.util.Log
+import okhttp3.HttpUrl
+import okhttp3.Interceptor
+import okhttp3.MediaType.Companion.toMediaType
+import okhttp3.Protocol
+import okhttp3.Response
+import okhttp3.ResponseBody.Companion.toResponseBody
+import okio.ByteString.Companion.encodeUtf8
+import okio.buffer
+import okio.gzip
+import okio.sink
+import okio.source
+import java.io.File
+import java.io.IOException
+import java.util.*
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Caches ranking and feed JSON on disk, so that runs close together filter the same candidates again
+ * instead of downloading them again
+ *
+ * Responses are keyed by their full URL, which holds the mode, page, date and any query, and are kept
+ * for a time depending on the endpoint, see [timeToLive]
+ * The feeds also depend on who is logged in, so their keys include the pixiv user id from [accountProvider],
+ * and after logging in as someone else the previous account's feed is never served
+ * Each cached response is a gzipped file holding its expiry time followed by the JSON
+ */
+class JsonCacheInterceptor(
+        private val directoryProvider: () -> File?,
+        private val accountProvider: () -> String?
+) : Interceptor {
+
+    companion object {
+        private const val LOG_TAG = "ANTONY_JSON_CACHE"
+
+        private val JSON = "application/json".toMediaType()
+
+        // Rankings are published once a day, Japan time
+        private val RANKING_TIME_ZONE = TimeZone.getTimeZone("Asia/Tokyo")
+
+        /*
+            How long a response from this URL stays fresh, in milliseconds, or zero if it must not be cached
+                ranking of a past date  never changes, so a week
+                latest ranking          until the next day starts in Japan
+                follow                  a few minutes, it changes whenever a followed artist posts
+                recommended             a little longer
+                bookmark, artist, tag   half an hour
+         */
+        fun timeToLive(url: HttpUrl, now: Long): Long {
+            val path = url.encodedPath
+            return when {
+                path == "/ranking.php" && url.queryParameter("date") != null -> TimeUnit.DAYS.toMillis(7)
+                path == "/ranking.php" -> untilNextRankingDay(now)
+                path.startsWith("/v2/illust/follow") -> TimeUnit.MINUTES.toMillis(5)
+                path.startsWith("/v1/illust/recommended") -> TimeUnit.MINUTES.toMillis(10)
+                path.startsWith("/v1/user/bookmarks/illust") ||
+                        path.startsWith("/v1/user/illusts") ||
+                        path.startsWith("/v1/search/illust") -> TimeUnit.MINUTES.toMillis(30)
+                else -> 0L
+            }
+        }
+
+        private fun untilNextRankingDay(now: Long): Long {
+            val calendar = Calendar.getInstance(RANKING_TIME_ZONE).apply {
+                timeInMillis = now
+                add(Calendar.DAY_OF_MONTH, 1)
+                set(Calendar.HOUR_OF_DAY, 0)
+                set(Calendar.MINUTE, 0)
+                set(Calendar.SECOND, 0)
+                set(Calendar.MILLISECOND, 0)
+            }
+            return calendar.timeInMillis - now
+        }
+    }
+
+    private val hits = AtomicInteger()
+    private val misses = AtomicInteger()
+
+    val hitCount: Int
+        get() = hits.get()
+
+    val missCount: Int
+        get() = misses.get()
+
+    override fun intercept(chain: Interceptor.Chain): Response {
+        val request = chain.request()
+        val now = System.currentTimeMillis()
+        val timeToLive = timeToLive(request.url, now)
+        val directory = directoryProvider()
+        if (request.method != "GET" || timeToLive <= 0 || directory == null) {
+            return chain.proceed(request)
+        }
+
+        val file = File(directory, keyOf(request.url).encodeUtf8().sha256().hex())
+        read(file, now)?.let { json ->
+            hits.incrementAndGet()
+            Log.d(LOG_TAG, "Serving " + request.url.encodedPath + " from cache")
+            return Response.Builder()
+                    .request(request)
+                    .protocol(Protocol.HTTP_1_1)
+                    .code(200)
+                    .message("OK")
+                    .body(json.toResponseBody(JSON))
+                    .build()
+        }
+
+        misses.incrementAndGet()
+        val response = chain.proceed(request)
+        if (!response.isSuccessful) {
+            return response
+        }
+        // The JSON pages are small, so the body is read in whole to be both cached and passed on
+        val body = response.body!!
+        val mediaType = body.contentType()
+        val json = body.use { it.bytes() }
+        write(directory, file, now + timeToLive, json)
+        return response.newBuilder()
+                .body(json.toResponseBody(mediaType))
+                .build()
+    }
+
+    // Rankings are the same for everyone, every other endpoint is a feed of the logged in account
+    private fun keyOf(url: HttpUrl): String =
+            if (url.encodedPath == "/ranking.php") url.toString() else accountProvider().orEmpty() + " " + url
+
+    // Returns the cached JSON, or null if there is none or it has expired
+    private fun read(file: File, now: Long): ByteArray? {
+        if (!file.exists()) {
+            return null
+        }
+        return try {
+            file.source().gzip().buffer().use { source ->
+                if (source.readLong() < now) {
+                    null
+                } else {
+                    source.readByteArray()
+                }
+            }
+        } catch (e: IOException) {
+            Log.w(LOG_TAG, "Discarding unreadable cache file", e)
+            file.delete()
+            null
+        }
+    }
+
+    // Written to a temporary file first, so a reader never sees a half written one
+    private fun write(directory: File, file: File, expiry: Long, json: ByteArray) {
+        try {
+            if (!directory.exists()) {
+                directory.mkdirs()
+            }
+            val temporary = File(directory, file.name + ".tmp")
+            temporary.sink().gzip().buffer().use { sink ->
+                sink.writeLong(expiry)
+                sink.write(json)
+            }
+            if (!temporary.renameTo(file)) {
+                temporary.delete()
+            }
+        } catch (e: IOException) {
+            // Not being able to cache is no reason to fail the request
+            Log.w(LOG_TAG, "Unable to cache " + file.name, e)
+        }
+    }
+}
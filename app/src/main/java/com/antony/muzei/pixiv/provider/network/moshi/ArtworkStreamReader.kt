@@ -0,0 +1,271 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.provider.network.moshi
+
+import com.squareup.moshi.JsonDataException
+import com.squareup.moshi.JsonReader
+import okio.BufferedSource
+import java.io.IOException
+
+/**
+ * Reads ranking and feed pages straight off the response, handing each artwork to accept() as soon as it
+ * has been read, so that a page never holds more than the artworks that passed
+ *
+ * Only the fields used by filtering and by building a PendingArtwork are read, everything else
+ * (tag lists, profile images, captions, and all but the first of an album's pages) is skipped without
+ * being decoded
+ * accept() is called on whichever thread reads the page
+ */
+object ArtworkStreamReader {
+
+    private val CONTENTS_NAMES = JsonReader.Options.of("contents", "mode", "date", "prev_date")
+    private val RANKING_ARTWORK_NAMES = JsonReader.Options.of(
+            "illust_id", "title", "url", "user_name", "illust_type", "width", "height", "view_count", "rank",
+            "illust_content_type"
+    )
+    private val CONTENT_TYPE_NAMES = JsonReader.Options.of("sexual")
+
+    private val ILLUSTS_NAMES = JsonReader.Options.of("illusts", "next_url")
+    private val AUTH_ARTWORK_NAMES = JsonReader.Options.of(
+            "id", "title", "type", "user", "width", "height", "sanity_level", "x_restrict", "total_view",
+            "meta_single_page", "meta_pages"
+    )
+    private val NAME_NAMES = JsonReader.Options.of("name")
+    private val ORIGINAL_IMAGE_URL_NAMES = JsonReader.Options.of("original_image_url")
+    private val IMAGE_URLS_NAMES = JsonReader.Options.of("image_urls")
+    private val ORIGINAL_NAMES = JsonReader.Options.of("original")
+
+    @Throws(IOException::class)
+    fun readContents(source: BufferedSource, accept: (RankingArtwork) -> Boolean): Contents {
+        val reader = JsonReader.of(source)
+        val artworks = ArrayList<RankingArtwork>()
+        var mode: String? = null
+        var date: String? = null
+        var prevDate: String? = null
+
+        reader.beginObject()
+        while (reader.hasNext()) {
+            when (reader.selectName(CONTENTS_NAMES)) {
+                0 -> {
+                    reader.beginArray()
+                    while (reader.hasNext()) {
+                        val artwork = readRankingArtwork(reader)
+                        if (accept(artwork)) {
+                            artworks.add(artwork)
+                        }
+                    }
+                    reader.endArray()
+                }
+                1 -> mode = nextStringOrNull(reader)
+                2 -> date = nextStringOrNull(reader)
+                3 -> prevDate = nextStringOrNull(reader)
+                else -> skipNameAndValue(reader)
+            }
+        }
+        reader.endObject()
+
+        return Contents(
+                artworks = artworks,
+                mode = mode,
+                date = date ?: throw JsonDataException("Ranking is missing its date"),
+                prev_date = prevDate ?: throw JsonDataException("Ranking is missing its prev_date")
+        )
+    }
+
+    @Throws(IOException::class)
+    fun readIllusts(source: BufferedSource, accept: (AuthArtwork) -> Boolean): Illusts {
+        val reader = JsonReader.of(source)
+        val artworks = ArrayList<AuthArtwork>()
+        var nextUrl: String? = null
+
+        reader.beginObject()
+        while (reader.hasNext()) {
+            when (reader.selectName(ILLUSTS_NAMES)) {
+                0 -> {
+                    reader.beginArray()
+                    while (reader.hasNext()) {
+                        val artwork = readAuthArtwork(reader)
+                        if (accept(artwork)) {
+                            artworks.add(artwork)
+                        }
+                    }
+                    reader.endArray()
+                }
+                1 -> nextUrl = nextStringOrNull(reader)
+                else -> skipNameAndValue(reader)
+            }
+        }
+        reader.endObject()
+
+        return Illusts(artworks, nextUrl)
+    }
+
+    private fun readRankingArtwork(reader: JsonReader): RankingArtwork {
+        var illustId = -1
+        var title: String? = null
+        var url: String? = null
+        var userName: String? = null
+        var illustType = 0
+        var width = 0
+        var height = 0
+        var viewCount = 0
+        var rank = 0
+        var sexual = 0
+
+        reader.beginObject()
+        while (reader.hasNext()) {
+            when (reader.selectName(RANKING_ARTWORK_NAMES)) {
+                0 -> illustId = reader.nextInt()
+                1 -> title = nextStringOrNull(reader)
+                2 -> url = nextStringOrNull(reader)
+                3 -> userName = nextStringOrNull(reader)
+                4 -> illustType = reader.nextInt()
+                5 -> width = reader.nextInt()
+                6 -> height = reader.nextInt()
+                7 -> viewCount = reader.nextInt()
+                8 -> rank = reader.nextInt()
+                9 -> {
+                    reader.beginObject()
+                    while (reader.hasNext()) {
+                        when (reader.selectName(CONTENT_TYPE_NAMES)) {
+                            0 -> sexual = reader.nextInt()
+                            else -> skipNameAndValue(reader)
+                        }
+                    }
+                    reader.endObject()
+                }
+                else -> skipNameAndValue(reader)
+            }
+        }
+        reader.endObject()
+
+        if (illustId < 0 || title == null || url == null || userName == null) {
+            throw JsonDataException("Ranking artwork is missing a required field at " + reader.path)
+        }
+        return RankingArtwork(
+                title = title,
+                url = url,
+                illust_type = illustType,
+                user_name = userName,
+                illust_content_type = RankingArtwork.Illust_Content_Type(sexual = sexual),
+                illust_id = illustId,
+                width = width,
+                height = height,
+                rank = rank,
+                view_count = viewCount
+        )
+    }
+
+    private fun readAuthArtwork(reader: JsonReader): AuthArtwork {
+        var id = -1
+        var title: String? = null
+        var type: String? = null
+        var userName: String? = null
+        var width = 0
+        var height = 0
+        var sanityLevel = 0
+        var xRestrict = 0
+        var totalView = 0
+        var singlePageUrl: String? = null
+        var firstPageUrl: String? = null
+        var hasPages = false
+
+        reader.beginObject()
+        while (reader.hasNext()) {
+            when (reader.selectName(AUTH_ARTWORK_NAMES)) {
+                0 -> id = reader.nextInt()
+                1 -> title = nextStringOrNull(reader)
+                2 -> type = nextStringOrNull(reader)
+                3 -> userName = readSingleString(reader, NAME_NAMES)
+                4 -> width = reader.nextInt()
+                5 -> height = reader.nextInt()
+                6 -> sanityLevel = reader.nextInt()
+                7 -> xRestrict = reader.nextInt()
+                8 -> totalView = reader.nextInt()
+                9 -> singlePageUrl = readSingleString(reader, ORIGINAL_IMAGE_URL_NAMES)
+                10 -> {
+                    // Only the first page of an album is ever downloaded
+                    reader.beginArray()
+                    while (reader.hasNext()) {
+                        if (hasPages) {
+                            reader.skipValue()
+                            continue
+                        }
+                        hasPages = true
+                        reader.beginObject()
+                        while (reader.hasNext()) {
+                            when (reader.selectName(IMAGE_URLS_NAMES)) {
+                                0 -> firstPageUrl = readSingleString(reader, ORIGINAL_NAMES)
+                                else -> skipNameAndValue(reader)
+                            }
+                        }
+                        reader.endObject()
+                    }
+                    reader.endArray()
+                }
+                else -> skipNameAndValue(reader)
+            }
+        }
+        reader.endObject()
+
+        if (id < 0 || title == null || userName == null) {
+            throw JsonDataException("Feed artwork is missing a required field at " + reader.path)
+        }
+        return AuthArtwork(
+                id = id,
+                title = title,
+                type = type,
+                user = AuthArtwork.User(name = userName),
+                width = width,
+                height = height,
+                sanity_level = sanityLevel,
+                x_restrict = xRestrict,
+                meta_single_page = AuthArtwork.Meta_Single_Page(singlePageUrl),
+                meta_pages = if (hasPages) {
+                    listOf(AuthArtwork.Meta_Pages(AuthArtwork.Image_Urls(original = firstPageUrl)))
+                } else emptyList(),
+                total_view = totalView
+        )
+    }
+
+    // Reads one string out of an object such as {"name": "..."}, skipping everything else in it
+    private fun readSingleString(reader: JsonReader, names: JsonReader.Options): String? {
+        if (reader.peek() == JsonReader.Token.NULL) {
+            return reader.nextNull<String>()
+        }
+        var value: String? = null
+        reader.beginObject()
+        while (reader.hasNext()) {
+            when (reader.selectName(names)) {
+                0 -> value = nextStringOrNull(reader)
+                else -> skipNameAndValue(reader)
+            }
+        }
+        reader.endObject()
+        return value
+    }
+
+    private fun nextStringOrNull(reader: JsonReader): String? =
+            if (reader.peek() == JsonReader.Token.NULL) reader.nextNull<String>() else reader.nextString()
+
+    // selectName() leaves an unknown name unread
+    private fun skipNameAndValue(reader: JsonReader) {
+        reader.skipName()
+        reader.skipValue()
+    }
+}
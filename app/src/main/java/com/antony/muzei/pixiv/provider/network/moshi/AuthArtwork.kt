@@ -0,0 +1,85 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.provider.network.moshi
+
+import com.squareup.moshi.JsonClass
+
+@JsonClass(generateAdapter = true)
+class AuthArtwork(
+        val id: Int,
+        val title: String,
+        val type: String? = null,
+        val image_urls: Image_Urls? = null,
+        val caption: String? = null,
+        val restrict: Int = 0,
+        val user: User,
+        val tags: List<Tags> = emptyList(),
+        val tools: List<String> = emptyList(),
+        val create_date: String? = null,
+        val page_count: Int = 0,
+        val width: Int = 0,
+        val height: Int = 0,
+        val sanity_level: Int = 0,
+        val x_restrict: Int = 0,
+        //val series: String,
+        val meta_single_page: Meta_Single_Page,
+        val meta_pages: List<Meta_Pages> = emptyList(),
+        val total_view: Int = 0,
+        val total_bookmarks: Int = 0,
+        val is_bookmarked: Boolean = false,
+        val visible: Boolean = false,
+        val is_muted: Boolean = false
+) {
+    // original is only present on the image_urls of a meta_pages entry
+    @JsonClass(generateAdapter = true)
+    class Image_Urls(
+            val square_medium: String? = null,
+            val medium: String? = null,
+            val large: String? = null,
+            val original: String? = null
+    )
+
+    @JsonClass(generateAdapter = true)
+    class User(
+            val id: Int = 0,
+            val name: String,
+            val account: String? = null
+    ) {
+        @JsonClass(generateAdapter = true)
+        class profile_image_urls(
+                val medium: String? = null
+        )
+    }
+
+    @JsonClass(generateAdapter = true)
+    class Tags(
+            val name: String? = null,
+            val translated_name: String? = null
+    )
+
+    // Albums are given an empty meta_single_page
+    @JsonClass(generateAdapter = true)
+    class Meta_Single_Page(
+            val original_image_url: String? = null
+    )
+
+    @JsonClass(generateAdapter = true)
+    class Meta_Pages(
+            val image_urls: Image_Urls
+    )
+}
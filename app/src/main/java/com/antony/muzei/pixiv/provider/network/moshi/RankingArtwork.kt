@@ -0,0 +1,62 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.provider.network.moshi
+
+import com.squareup.moshi.JsonClass
+
+@JsonClass(generateAdapter = true)
+class RankingArtwork(
+        val title: String,
+        val date: String? = null,
+        val tags: List<String> = emptyList(),
+        val url: String,
+        val illust_type: Int = 0,
+        val illust_book_style: Int = 0,
+        val illust_page_count: Int = 0,
+        val user_name: String,
+        val profile_img: String? = null,
+        val illust_content_type: Illust_Content_Type,
+        //val illust_series: Boolean,
+        val illust_id: Int,
+        val width: Int = 0,
+        val height: Int = 0,
+        val user_id: Int = 0,
+        val rank: Int = 0,
+        val yes_rank: Int = 0,
+        val rating_count: Int = 0,
+        val view_count: Int = 0,
+        val illust_upload_timestamp: Int = 0,
+        val attr: String? = null
+) {
+    @JsonClass(generateAdapter = true)
+    class Illust_Content_Type(
+            val sexual: Int = 0,
+            val lo: Boolean = false,
+            val grotesque: Boolean = false,
+            val violent: Boolean = false,
+            val homosexual: Boolean = false,
+            val drug: Boolean = false,
+            val thoughts: Boolean = false,
+            val antisocial: Boolean = false,
+            val religion: Boolean = false,
+            val original: Boolean = false,
+            val furry: Boolean = false,
+            val bl: Boolean = false,
+            val yuri: Boolean = false
+    )
+}
@@ -27,7 +27,6 @@ import android.view.ViewGroup
 import androidx.fragment.app.Fragment
 import androidx.recyclerview.widget.GridLayoutManager
 import androidx.recyclerview.widget.RecyclerView
-import com.antony.muzei.pixiv.AppDatabase
 import com.antony.muzei.pixiv.BuildConfig
 import com.antony.muzei.pixiv.R
 import com.antony.muzei.pixiv.provider.PixivArtProvider
@@ -108,7 +107,7 @@ class ArtworkDeletionFragment : Fragment() {
                 operations.add(operation)
 
                 // Used to remember which artworks have been deleted, so we don't download them again
-                listOfDeletedIds.add(DeletedArtworkIdEntity(artworkItem.token))
+                listOfDeletedIds.add(DeletedArtworkIdEntity(artworkItem.token.toInt()))
             }
             try {
                 context.contentResolver.applyBatch(BuildConfig.APPLICATION_ID + ".provider", operations)
@@ -118,9 +117,8 @@ class ArtworkDeletionFragment : Fragment() {
                 e.printStackTrace()
             }
 
-            val appDatabase = AppDatabase.getInstance(context)
             AsyncTask.execute {
-                appDatabase?.deletedArtworkIdDao()?.insertDeletedArtworkId(listOfDeletedIds.toList())
+                DeletedArtworkIdSet.insert(context, listOfDeletedIds.toList())
             }
 
             // TODO also delete the files from the disk?
@@ -11,10 +11,15 @@ interface DeletedArtworkIdDao {
     @Query("SELECT * FROM DeletedArtworkIdEntity")
     fun getAll(): List<DeletedArtworkIdEntity>
 
+    // Used to load every deleted id into memory at once, see DeletedArtworkIdSet
+    @Query("SELECT artworkId FROM DeletedArtworkIdEntity")
+    fun getAllArtworkIds(): List<Int>
+
     // Returns true if the passed artworkId is present in the table
     @Query("SELECT EXISTS(SELECT * FROM DeletedArtworkIdEntity WHERE artworkId = (:artworkId))")
-    fun isRowIsExist(artworkId : Int) : Boolean
+    fun isRowIsExist(artworkId: Int): Boolean
 
-    @Insert(onConflict = OnConflictStrategy.ABORT)
+    // Ids already in the table are skipped, instead of failing the whole batch
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
     fun insertDeletedArtworkId(deletedArtworkIds: List<DeletedArtworkIdEntity>)
 }
@@ -5,5 +5,5 @@ import androidx.room.PrimaryKey
 
 @Entity
 data class DeletedArtworkIdEntity(
-        @PrimaryKey val artworkId: String
+        @PrimaryKey val artworkId: Int
 )
@@ -0,0 +1,84 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.settings.deleteArtwork
+
+import android.content.Context
+import android.util.Log
+import com.antony.muzei.pixiv.AppDatabase
+import com.antony.muzei.pixiv.util.IntBloomFilter
+import com.antony.muzei.pixiv.util.IntHashSet
+
+/**
+ * In memory copy of the ids of artworks the user has deleted, so that filtering never has to query the
+ * database for every candidate artwork
+ *
+ * Loaded from the database once per process, and kept in sync by inserting through [insert]
+ * A Bloom filter sits in front of the set, as nearly every candidate artwork has not been deleted
+ */
+object DeletedArtworkIdSet {
+    private const val LOG_TAG = "ANTONY_DELETED"
+
+    private var ids: IntHashSet? = null
+    private var bloomFilter = IntBloomFilter(0)
+
+    /**
+     * Returns true if the user has deleted this artwork
+     * Must not be called from the main thread, as the first call loads the set from the database
+     */
+    fun contains(context: Context, artworkId: Int): Boolean = synchronized(this) {
+        val loadedIds = ensureLoaded(context)
+        bloomFilter.mightContain(artworkId) && loadedIds.contains(artworkId)
+    }
+
+    /**
+     * Remembers the artworks as deleted, both in memory and in the database
+     * Must not be called from the main thread
+     */
+    fun insert(context: Context, deletedArtworkIds: List<DeletedArtworkIdEntity>) {
+        synchronized(this) {
+            val loadedIds = ensureLoaded(context)
+            for (entity in deletedArtworkIds) {
+                if (loadedIds.add(entity.artworkId)) {
+                    bloomFilter.add(entity.artworkId)
+                }
+            }
+            // Past its sizing the false positive rate climbs, so the filter is rebuilt with room to grow
+            if (loadedIds.size > bloomFilter.capacity) {
+                rebuildBloomFilter(loadedIds)
+            }
+        }
+        AppDatabase.getInstance(context)?.deletedArtworkIdDao()?.insertDeletedArtworkId(deletedArtworkIds)
+    }
+
+    private fun ensureLoaded(context: Context): IntHashSet {
+        ids?.let { return it }
+        val startTime = System.currentTimeMillis()
+        val storedIds = AppDatabase.getInstance(context)?.deletedArtworkIdDao()?.getAllArtworkIds() ?: emptyList()
+        val loadedIds = IntHashSet(storedIds.size)
+        storedIds.forEach { loadedIds.add(it) }
+        rebuildBloomFilter(loadedIds)
+        ids = loadedIds
+        Log.d(LOG_TAG, "Loaded " + loadedIds.size + " deleted artwork ids in " + (System.currentTimeMillis() - startTime) + " milliseconds")
+        return loadedIds
+    }
+
+    private fun rebuildBloomFilter(loadedIds: IntHashSet) {
+        bloomFilter = IntBloomFilter(loadedIds.size * 2)
+        loadedIds.forEach { bloomFilter.add(it) }
+    }
+}
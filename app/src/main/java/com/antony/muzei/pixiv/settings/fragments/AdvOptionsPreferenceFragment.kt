@@ -172,6 +172,34 @@ class AdvOptionsPreferenceFragment : PreferenceFragmentCompat() {
             true
         }
 
+        // Slider that caps how many artworks are downloaded simultaneously
+        val maxConcurrentDownloadsSlider = findPreference<SeekBarPreference>("prefSlider_maxConcurrentDownloads")
+        maxConcurrentDownloadsSlider!!.updatesContinuously = true
+        maxConcurrentDownloadsSlider.summary = sharedPrefs.getInt("prefSlider_maxConcurrentDownloads", 3).toString()
+        maxConcurrentDownloadsSlider.onPreferenceChangeListener = Preference.OnPreferenceChangeListener { _: Preference?, newValue: Any? ->
+            maxConcurrentDownloadsSlider.summary = (newValue as Int).toString()
+            true
+        }
+
+        // Slider that sets how many downloaded artworks are kept ready for Muzei, zero turns this off
+        val prefetchBufferSizeSlider = findPreference<SeekBarPreference>("prefSlider_prefetchBufferSize")
+        prefetchBufferSizeSlider!!.updatesContinuously = true
+        prefetchBufferSizeSlider.summary = sharedPrefs.getInt("prefSlider_prefetchBufferSize", 2).toString()
+        prefetchBufferSizeSlider.onPreferenceChangeListener = Preference.OnPreferenceChangeListener { _: Preference?, newValue: Any? ->
+            prefetchBufferSizeSlider.summary = (newValue as Int).toString()
+            true
+        }
+
+        // Slider that sizes the HTTP cache for ranking and feed JSON, in megabytes
+        // Takes effect the next time the app is started
+        val httpCacheSizeSlider = findPreference<SeekBarPreference>("prefSlider_httpCacheSize")
+        httpCacheSizeSlider!!.updatesContinuously = true
+        httpCacheSizeSlider.summary = sharedPrefs.getInt("prefSlider_httpCacheSize", 10).toString() + " MB"
+        httpCacheSizeSlider.onPreferenceChangeListener = Preference.OnPreferenceChangeListener { _: Preference?, newValue: Any? ->
+            httpCacheSizeSlider.summary = (newValue as Int).toString() + " MB"
+            true
+        }
+
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
             preferenceScreen = findPreference(resources.getString(R.string.preferenceScreen))
             val prefCatPostProcess = findPreference<PreferenceCategory>("prefCat_postProcess")
@@ -29,6 +29,8 @@ import com.antony.muzei.pixiv.R
 import com.antony.muzei.pixiv.login.LoginActivityWebview
 import com.antony.muzei.pixiv.provider.PixivArtProviderDefines
 import com.antony.muzei.pixiv.provider.PixivArtWorker.Companion.enqueueLoad
+import com.antony.muzei.pixiv.provider.PrefetchBuffer
+import com.antony.muzei.pixiv.provider.download.ImageStore
 import com.google.android.material.snackbar.Snackbar
 import java.io.File
 import java.util.*
@@ -211,6 +213,8 @@ class MainPreferenceFragment : PreferenceFragmentCompat() {
             for (child in children) {
                 File(dir, child).delete()
             }
+            ImageStore(requireContext()).clear()
+            PrefetchBuffer(requireContext()).clear()
             enqueueLoad(true, context)
             Snackbar.make(requireView(), R.string.toast_clearingCache,
                     Snackbar.LENGTH_SHORT)
@@ -288,11 +292,11 @@ class MainPreferenceFragment : PreferenceFragmentCompat() {
         if (oldUpdateMode != newUpdateMode || oldTag != newTag
                 || oldArtist != newArtist) {
             WorkManager.getInstance(requireContext()).cancelUniqueWork("ANTONY")
+            // Only the partial downloads belonging to the old mode are deleted
+            // Images in the image store are kept, as the new mode may well select some of them again
             val dir = requireContext().getExternalFilesDir(Environment.DIRECTORY_PICTURES)
-            val children = dir!!.list()
-            for (child in children) {
-                File(dir, child).delete()
-            }
+            dir!!.listFiles { file -> file.isFile }?.forEach { it.delete() }
+            PrefetchBuffer(requireContext()).clear()
             enqueueLoad(true, context)
             if (oldUpdateMode != newUpdateMode) {
                 Toast.makeText(context, getString(R.string.toast_newUpdateMode), Toast.LENGTH_SHORT).show()
@@ -0,0 +1,71 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.util
+
+/**
+ * Bloom filter over ints, for cheaply ruling out membership of a larger set
+ * A false return from [mightContain] is definite; a true return must be confirmed against the real set
+ *
+ * Sized for [expectedSize] elements at roughly a 1% false positive rate
+ */
+class IntBloomFilter(expectedSize: Int) {
+
+    companion object {
+        // About 9.6 bits per element with 7 hash functions gives a 1% false positive rate
+        private const val BITS_PER_ELEMENT = 10
+        private const val HASH_COUNT = 7
+    }
+
+    val capacity = expectedSize.coerceAtLeast(64)
+
+    private val bitCount = capacity * BITS_PER_ELEMENT
+    private val bits = LongArray((bitCount + 63) / 64)
+
+    fun add(value: Int) {
+        val h1 = hash1(value)
+        val h2 = hash2(value)
+        for (i in 0 until HASH_COUNT) {
+            val bit = ((h1 + i * h2) and Int.MAX_VALUE) % bitCount
+            bits[bit ushr 6] = bits[bit ushr 6] or (1L shl bit)
+        }
+    }
+
+    fun mightContain(value: Int): Boolean {
+        val h1 = hash1(value)
+        val h2 = hash2(value)
+        for (i in 0 until HASH_COUNT) {
+            val bit = ((h1 + i * h2) and Int.MAX_VALUE) % bitCount
+            if (bits[bit ushr 6] and (1L shl bit) == 0L) {
+                return false
+            }
+        }
+        return true
+    }
+
+    // Two independent hashes, combined as h1 + i * h2 to simulate HASH_COUNT hash functions
+    private fun hash1(value: Int): Int {
+        val h = value * -0x61c88647
+        return h xor (h ushr 15)
+    }
+
+    private fun hash2(value: Int): Int {
+        var h = value * -0x3361d2af
+        h = h xor (h ushr 13)
+        return h or 1
+    }
+}
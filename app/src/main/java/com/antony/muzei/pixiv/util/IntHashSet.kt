@@ -0,0 +1,132 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.util
+
+/**
+ * Set of ints kept in a flat open addressed array, without boxing each element into an Integer
+ * Only supports adding and looking up, which is all the duplicate checks need
+ */
+class IntHashSet(expectedSize: Int = 16) {
+
+    companion object {
+        // Marks an empty slot. Zero itself is tracked separately
+        private const val EMPTY = 0
+    }
+
+    private var slots = IntArray(capacityFor(expectedSize))
+    private var containsZero = false
+
+    var size = 0
+        private set
+
+    fun contains(value: Int): Boolean {
+        if (value == EMPTY) {
+            return containsZero
+        }
+        val mask = slots.size - 1
+        var index = mix(value) and mask
+        while (true) {
+            val slot = slots[index]
+            if (slot == EMPTY) {
+                return false
+            }
+            if (slot == value) {
+                return true
+            }
+            index = (index + 1) and mask
+        }
+    }
+
+    /**
+     * Returns true if the value was not already in the set
+     */
+    fun add(value: Int): Boolean {
+        if (value == EMPTY) {
+            if (containsZero) {
+                return false
+            }
+            containsZero = true
+            size++
+            return true
+        }
+        // Kept at most half full, so probe sequences stay short
+        if ((size + 1) * 2 > slots.size) {
+            rehash(slots.size * 2)
+        }
+        if (!insert(slots, value)) {
+            return false
+        }
+        size++
+        return true
+    }
+
+    fun addAll(values: Iterable<Int>) {
+        values.forEach { add(it) }
+    }
+
+    fun forEach(action: (Int) -> Unit) {
+        if (containsZero) {
+            action(EMPTY)
+        }
+        for (value in slots) {
+            if (value != EMPTY) {
+                action(value)
+            }
+        }
+    }
+
+    private fun insert(table: IntArray, value: Int): Boolean {
+        val mask = table.size - 1
+        var index = mix(value) and mask
+        while (true) {
+            val slot = table[index]
+            if (slot == EMPTY) {
+                table[index] = value
+                return true
+            }
+            if (slot == value) {
+                return false
+            }
+            index = (index + 1) and mask
+        }
+    }
+
+    private fun rehash(newCapacity: Int) {
+        val newSlots = IntArray(newCapacity)
+        for (value in slots) {
+            if (value != EMPTY) {
+                insert(newSlots, value)
+            }
+        }
+        slots = newSlots
+    }
+
+    // Illust ids are sequential, so spread them out before masking off the low bits
+    private fun mix(value: Int): Int {
+        val h = value * -0x61c88647
+        return h xor (h ushr 16)
+    }
+
+    private fun capacityFor(expectedSize: Int): Int {
+        var capacity = 16
+        while (capacity < expectedSize * 2) {
+            capacity = capacity shl 1
+        }
+        return capacity
+    }
+}
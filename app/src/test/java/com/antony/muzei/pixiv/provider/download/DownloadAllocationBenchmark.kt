@@ -0,0 +1,106 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.antony.muzei.pixiv.provider.download
+
+import okio.blackholeSink
+import okio.buffer
+import okio.source
+import org.junit.Assert.assertEquals
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+import java.io.OutputStream
+import java.lang.management.ManagementFactory
+
+/**
+ * Measures how many bytes are allocated while streaming one downloaded image to disk
+ *
+ * Compares [VerifyingSink] fed by readAll(), which is how the worker now writes images, against the
+ * 10 MiB ByteArray copy loop the worker used before
+ * Both read from the same fake response body and write to a sink that throws the bytes away, so that only
+ * the copy itself is measured
+ * Allocations are read off the JVM's per thread counter, so this needs a HotSpot based JVM
+ */
+class DownloadAllocationBenchmark {
+
+    companion object {
+        private const val BODY_SIZE = 8 * 1024 * 1024
+        private const val OLD_BUFFER_SIZE = 1024 * 1024 * 10
+
+        private val PNG_MAGIC = byteArrayOf(0x89.toByte(), 0x50, 0x4E, 0x47)
+        private val PNG_CLOSER = byteArrayOf(0x49, 0x45, 0x4E, 0x44, 0xAE.toByte(), 0x42, 0x60, 0x82.toByte())
+    }
+
+    private val threadBean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+
+    @Test
+    fun streamImage() {
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported)
+        threadBean.isThreadAllocatedMemoryEnabled = true
+
+        val body = fakePng(BODY_SIZE)
+
+        // First run of each loads classes and fills okio's segment pool, which a worker would already have done
+        streamWithVerifyingSink(body)
+        copyWithByteArray(body)
+
+        val verifying = allocatedBy { streamWithVerifyingSink(body) }
+        val byteArray = allocatedBy { copyWithByteArray(body) }
+
+        println("Streaming a ${BODY_SIZE / 1024} KiB image, bytes allocated:" +
+                " readAll(VerifyingSink) $verifying, ByteArray(10 MiB) copy $byteArray")
+    }
+
+    // What writeVerified() does with the response body
+    private fun streamWithVerifyingSink(body: ByteArray) {
+        val source = body.inputStream().source().buffer()
+        val verifyingSink = VerifyingSink(blackholeSink(), body.size.toLong())
+        source.readAll(verifyingSink)
+        assertEquals(FileType.PNG, verifyingSink.verify())
+        source.close()
+    }
+
+    // What the worker did before, with responseBody.byteStream() and a FileOutputStream
+    private fun copyWithByteArray(body: ByteArray) {
+        val inputStream = body.inputStream().source().buffer().inputStream()
+        val outputStream = object : OutputStream() {
+            override fun write(b: Int) {}
+            override fun write(b: ByteArray, off: Int, len: Int) {}
+        }
+        val buffer = ByteArray(OLD_BUFFER_SIZE)
+        var length: Int
+        while (inputStream.read(buffer).also { length = it } != -1) {
+            outputStream.write(buffer, 0, length)
+        }
+        outputStream.close()
+        inputStream.close()
+    }
+
+    private inline fun allocatedBy(block: () -> Unit): Long {
+        val threadId = Thread.currentThread().id
+        val before = threadBean.getThreadAllocatedBytes(threadId)
+        block()
+        return threadBean.getThreadAllocatedBytes(threadId) - before
+    }
+
+    // Only the magic bytes and the IEND chunk are looked at, so the rest can be anything
+    private fun fakePng(size: Int): ByteArray {
+        val bytes = ByteArray(size) { (it * 31).toByte() }
+        PNG_MAGIC.copyInto(bytes)
+        PNG_CLOSER.copyInto(bytes, size - PNG_CLOSER.size)
+        return bytes
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.provider.network
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.ServerSocket
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit
+
+/**
+ * Runs AddressPool against local stand-in sockets
+ *
+ * Each candidate address stands for a ServerSocket on loopback; the probe connects to that socket for real,
+ * then adds the candidate's pretend latency, so that the order is decided by the test rather than by
+ * how fast loopback happens to be. A candidate whose socket has been closed refuses connections, like a dead address
+ * Probes run on the calling thread, and the clock only moves when the test moves it
+ */
+class AddressPoolTest {
+
+    companion object {
+        private const val HOST = "pixiv.net"
+        private val TTL_MILLIS = TimeUnit.MINUTES.toMillis(10)
+    }
+
+    private val fast = address(1)
+    private val medium = address(2)
+    private val slow = address(3)
+
+    private val sockets = HashMap<InetAddress, ServerSocket>()
+    private val latencies = HashMap<InetAddress, Long>()
+    private var probes = 0
+    private var now = 0L
+
+    private lateinit var pool: AddressPool
+
+    @Before
+    fun setUp() {
+        listOf(slow, medium, fast).forEach { sockets[it] = ServerSocket(0, 50, InetAddress.getLoopbackAddress()) }
+        latencies[fast] = 5
+        latencies[medium] = 20
+        latencies[slow] = 80
+
+        pool = AddressPool(
+                mapOf(HOST to listOf(slow, medium, fast)),
+                ttlMillis = TTL_MILLIS,
+                probeTimeoutMillis = 1000,
+                clock = { now },
+                probeConnect = { address, timeoutMillis ->
+                    probes++
+                    val standIn = InetSocketAddress(InetAddress.getLoopbackAddress(), sockets[address.address]!!.localPort)
+                    AddressPool.connectTime(standIn, timeoutMillis) + latencies[address.address]!!
+                },
+                executor = Executor { it.run() }
+        )
+    }
+
+    @After
+    fun tearDown() {
+        sockets.values.forEach { it.close() }
+    }
+
+    @Test
+    fun lookupOrdersFastestFirst() {
+        assertEquals(listOf(fast, medium, slow), pool.lookup(HOST))
+    }
+
+    @Test
+    fun deadAddressGoesLast() {
+        sockets[fast]!!.close()
+        assertEquals(listOf(medium, slow, fast), pool.lookup(HOST))
+    }
+
+    @Test
+    fun reportedFailureMovesAddressDown() {
+        pool.lookup(HOST)
+        pool.reportFailure(fast)
+        assertEquals(listOf(medium, slow, fast), pool.lookup(HOST))
+    }
+
+    @Test
+    fun orderIsReusedUntilTtlThenProbedAgain() {
+        pool.lookup(HOST)
+        val probesAfterFirstLookup = probes
+        latencies[fast] = 200
+
+        now += TTL_MILLIS - 1
+        assertEquals(listOf(fast, medium, slow), pool.lookup(HOST))
+        assertEquals(probesAfterFirstLookup, probes)
+
+        // Smoothed, fast now averages (5 * 3 + 200) / 4 = 53 milliseconds, between medium and slow
+        now += 1
+        assertEquals(listOf(medium, fast, slow), pool.lookup(HOST))
+        assertEquals(probesAfterFirstLookup * 2, probes)
+    }
+
+    // Never connected to directly, only stands in for one of the local sockets
+    private fun address(last: Int): InetAddress = InetAddress.getByAddress(HOST, byteArrayOf(10, 0, 0, last.toByte()))
+}
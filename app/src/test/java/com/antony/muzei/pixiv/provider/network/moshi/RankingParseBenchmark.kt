@@ -0,0 +1,91 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.antony.muzei.pixiv.provider.network.moshi
+
+import com.antony.muzei.pixiv.provider.network.MoshiSingleton
+import com.squareup.moshi.Moshi
+import okio.Buffer
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.io.File
+
+/**
+ * Times parsing of a ranking.php page, as the server sends it
+ *
+ * Compares a fresh Moshi per parse, which is what the app used to do, against [MoshiSingleton], and against
+ * [ArtworkStreamReader] which the worker now reads pages with
+ * The first parse of each is reported on its own, as that is what a worker run after a cold start pays
+ *
+ * A page saved straight from the server can be timed instead of the built in one with
+ *  RANKING_PAYLOAD=/path/to/ranking.json ./gradlew testProdDebugUnitTest
+ */
+class RankingParseBenchmark {
+
+    companion object {
+        private const val ITERATIONS = 25
+        private const val ARTWORKS_PER_PAGE = 50
+    }
+
+    @Test
+    fun rankingPage() {
+        val json = System.getenv("RANKING_PAYLOAD")?.let { File(it).readText() } ?: rankingPage(ARTWORKS_PER_PAGE)
+
+        val freshFirst = timeOnce { Moshi.Builder().build().adapter(Contents::class.java).fromJson(json) }
+        val sharedFirst = timeOnce { MoshiSingleton.getInstance().adapter(Contents::class.java).fromJson(json) }
+        val streamFirst = timeOnce { ArtworkStreamReader.readContents(Buffer().writeUtf8(json)) { true } }
+        val fresh = median { Moshi.Builder().build().adapter(Contents::class.java).fromJson(json) }
+        val shared = median { MoshiSingleton.getInstance().adapter(Contents::class.java).fromJson(json) }
+        val stream = median { ArtworkStreamReader.readContents(Buffer().writeUtf8(json)) { true } }
+
+        println("Parsing ${json.length} chars, microseconds first/median of $ITERATIONS:" +
+                " fresh Moshi $freshFirst/$fresh, shared Moshi $sharedFirst/$shared, stream reader $streamFirst/$stream")
+
+        val expected = MoshiSingleton.getInstance().adapter(Contents::class.java).fromJson(json)!!.artworks.size
+        assertEquals(expected, ArtworkStreamReader.readContents(Buffer().writeUtf8(json)) { true }.artworks.size)
+    }
+
+    private inline fun timeOnce(block: () -> Unit): Long {
+        val start = System.nanoTime()
+        block()
+        return (System.nanoTime() - start) / 1000
+    }
+
+    private inline fun median(block: () -> Unit): Long {
+        val samples = LongArray(ITERATIONS) { timeOnce(block) }
+        samples.sort()
+        return samples[ITERATIONS / 2]
+    }
+
+    // Every field ranking.php sends for each artwork, not only those the app reads
+    private fun rankingPage(artworks: Int): String {
+        val contents = (1..artworks).joinToString(",") { rank ->
+            val id = 79583500 + rank
+            """{"title":"Title $rank","date":"2020年02月19日 00:00","tags":["オリジナル","女の子","風景","10000users入り"],""" +
+                    """"url":"https://i.pximg.net/c/240x480/img-master/img/2020/02/19/00/00/39/${id}_p0_master1200.jpg",""" +
+                    """"illust_type":"0","illust_book_style":"0","illust_page_count":"1","user_name":"Artist $rank",""" +
+                    """"profile_img":"https://i.pximg.net/user-profile/img/2019/01/01/00/00/00/1234567_abcdef_50.png",""" +
+                    """"illust_content_type":{"sexual":0,"lo":false,"grotesque":false,"violent":false,"homosexual":false,""" +
+                    """"drug":false,"thoughts":false,"antisocial":false,"religion":false,"original":true,"furry":false,""" +
+                    """"bl":false,"yuri":false},"illust_series":false,"illust_id":$id,"width":1447,"height":2047,""" +
+                    """"user_id":${1000000 + rank},"rank":$rank,"yes_rank":${rank + 3},"rating_count":${5000 - rank},""" +
+                    """"view_count":${80000 - rank * 100},"illust_upload_timestamp":1582038039,"attr":"original"}"""
+        }
+        return """{"contents":[$contents],"mode":"daily","content":"all","page":1,"prev":false,"next":2,""" +
+                """"date":"20200219","prev_date":"20200218","next_date":false,"rank_total":500}"""
+    }
+}
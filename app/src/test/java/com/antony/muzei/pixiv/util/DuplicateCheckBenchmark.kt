@@ -0,0 +1,135 @@
+/*
+ *     This file is part of PixivforMuzei3.
+ *
+ *     PixivforMuzei3 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program  is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.antony.muzei.pixiv.util
+
+import com.antony.muzei.pixiv.provider.network.moshi.RankingArtwork
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+/**
+ * Times the duplicate check over a few ranking pages, against a provider already holding a few thousand artworks
+ *
+ * Compares the per candidate ContentResolver query the worker used to run against the [IntHashSet] it now
+ * loads once per run. The [IntHashSet] side includes the one query and the loading of every id, as a run pays for those too
+ * A ContentResolver query can't be made from a JVM test, so each one is stubbed with a scan of the stored
+ * ids plus a fixed cost standing in for the IPC and cursor. The cost can be set with
+ *  QUERY_COST_MICROS=500 ./gradlew testProdDebugUnitTest
+ */
+class DuplicateCheckBenchmark {
+
+    companion object {
+        private const val ITERATIONS = 25
+        private const val PAGES = 3
+        private const val ARTWORKS_PER_PAGE = 50
+        private const val KNOWN_ARTWORKS = 2000
+        private const val DEFAULT_QUERY_COST_MICROS = 1000L
+
+        private const val FIRST_ID = 79580000
+    }
+
+    private val queryCostNanos = (System.getenv("QUERY_COST_MICROS")?.toLongOrNull()
+            ?: DEFAULT_QUERY_COST_MICROS) * 1000
+
+    // Every other id, so about half of the ranking candidates below are duplicates
+    private val providerTokens = IntArray(KNOWN_ARTWORKS) { FIRST_ID + it * 2 }
+
+    private val rankingPages = List(PAGES) { page ->
+        List(ARTWORKS_PER_PAGE) { rank -> rankingArtwork(FIRST_ID + KNOWN_ARTWORKS + page * ARTWORKS_PER_PAGE + rank) }
+    }
+
+    @Test
+    fun filterRankingPages() {
+        val perQuery = median { filterWithQueries() }
+        val intHashSet = median { filterWithIntHashSet() }
+
+        println("Filtering $PAGES ranking pages against $KNOWN_ARTWORKS stored artworks, microseconds median of" +
+                " $ITERATIONS, with ${queryCostNanos / 1000} microseconds per query:" +
+                " query per candidate $perQuery, IntHashSet $intHashSet")
+
+        assertEquals(filterWithQueries(), filterWithIntHashSet())
+    }
+
+    // What isDuplicateArtwork() did before, one provider query per candidate after the ids selected this run
+    private fun filterWithQueries(): Int {
+        val selectedArtworkIds = HashSet<Int>()
+        var accepted = 0
+        for (page in rankingPages) {
+            for (artwork in page) {
+                if (selectedArtworkIds.contains(artwork.illust_id) || queryToken(artwork.illust_id)) {
+                    continue
+                }
+                selectedArtworkIds.add(artwork.illust_id)
+                accepted++
+            }
+        }
+        return accepted
+    }
+
+    // What the worker does now, a single query for every token then lookups in memory
+    private fun filterWithIntHashSet(): Int {
+        val knownArtworkIds = IntHashSet()
+        queryAllTokens().forEach { knownArtworkIds.add(it) }
+        var accepted = 0
+        for (page in rankingPages) {
+            for (artwork in page) {
+                if (!knownArtworkIds.add(artwork.illust_id)) {
+                    continue
+                }
+                accepted++
+            }
+        }
+        return accepted
+    }
+
+    // Stands in for query(contentUri, ["_id"], "token = ?", [token], null)
+    private fun queryToken(token: Int): Boolean {
+        simulateQueryCost()
+        return providerTokens.any { it == token }
+    }
+
+    // Stands in for query(contentUri, [TOKEN], null, null, null)
+    private fun queryAllTokens(): IntArray {
+        simulateQueryCost()
+        return providerTokens.copyOf()
+    }
+
+    private fun simulateQueryCost() {
+        val end = System.nanoTime() + queryCostNanos
+        while (System.nanoTime() < end) {
+            // Busy waits, as sleeping can't be relied on for sub millisecond durations
+        }
+    }
+
+    private inline fun median(block: () -> Unit): Long {
+        val samples = LongArray(ITERATIONS) {
+            val start = System.nanoTime()
+            block()
+            (System.nanoTime() - start) / 1000
+        }
+        samples.sort()
+        return samples[ITERATIONS / 2]
+    }
+
+    // Only the id is looked at by the duplicate check
+    private fun rankingArtwork(id: Int) = RankingArtwork(
+            title = "Title $id",
+            url = "https://i.pximg.net/c/240x480/img-master/img/2020/02/19/00/00/39/${id}_p0_master1200.jpg",
+            user_name = "Artist $id",
+            illust_content_type = RankingArtwork.Illust_Content_Type(),
+            illust_id = id
+    )
+}